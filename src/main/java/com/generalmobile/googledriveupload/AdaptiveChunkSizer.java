@@ -0,0 +1,87 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the chunk size of resumable uploads from the measured throughput.
+ * Starts at the lower bound and aims for chunks that take about {@link #TARGET_CHUNK_SECONDS} to send,
+ * at most doubling or halving the size after each chunk and always staying a multiple of 256 KB.
+ * The size learned by one upload is where the next upload starts.
+ */
+class AdaptiveChunkSizer {
+    static final int KB = 0x400;
+    static final int DEFAULT_MIN_CHUNK_SIZE_KB = MediaHttpUploader.MINIMUM_CHUNK_SIZE / KB;
+    static final int DEFAULT_MAX_CHUNK_SIZE_KB = 16 * 1024;
+    private static final double TARGET_CHUNK_SECONDS = 2.0;
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private volatile int chunkSize;
+
+    /**
+     * @param minChunkSizeKb lower bound in KB, rounded to a multiple of 256 KB
+     * @param maxChunkSizeKb upper bound in KB, rounded to a multiple of 256 KB, equal bounds give a fixed chunk size
+     */
+    AdaptiveChunkSizer(final int minChunkSizeKb, final int maxChunkSizeKb) {
+        this.minChunkSize = roundToChunkMultiple((long) minChunkSizeKb * KB);
+        this.maxChunkSize = Math.max(minChunkSize, roundToChunkMultiple((long) maxChunkSizeKb * KB));
+        this.chunkSize = minChunkSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Adjusts the chunk size after a chunk of the given size was sent in the given time.
+     * @return the chunk size to use for the next chunk
+     */
+    int chunkUploaded(final long bytes, final long elapsedNanos) {
+        if (bytes <= 0 || elapsedNanos <= 0) {
+            return chunkSize;
+        }
+        double bytesPerSecond = bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        long targetSize = (long) (bytesPerSecond * TARGET_CHUNK_SECONDS);
+        long currentSize = chunkSize;
+        long nextSize = Math.max(currentSize / 2, Math.min(currentSize * 2, targetSize));
+        chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, roundToChunkMultiple(nextSize)));
+        return chunkSize;
+    }
+
+    /**
+     * Measures the chunks of one upload, to be fed from the progress callbacks of its uploader.
+     */
+    Measurement startUpload() {
+        return new Measurement();
+    }
+
+    class Measurement {
+        private long lastBytesUploaded;
+        private long lastProgressNanos = System.nanoTime();
+
+        /**
+         * Restarts the clock, e.g. once the upload session has been initiated.
+         */
+        void reset(final long bytesUploaded) {
+            lastBytesUploaded = bytesUploaded;
+            lastProgressNanos = System.nanoTime();
+        }
+
+        /**
+         * @return the chunk size to use for the next chunk
+         */
+        int chunkCompleted(final long bytesUploaded) {
+            long now = System.nanoTime();
+            int nextChunkSize = chunkUploaded(bytesUploaded - lastBytesUploaded, now - lastProgressNanos);
+            reset(bytesUploaded);
+            return nextChunkSize;
+        }
+    }
+
+    private static int roundToChunkMultiple(final long size) {
+        long chunks = Math.max(1, size / MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+        return (int) Math.min(Integer.MAX_VALUE / MediaHttpUploader.MINIMUM_CHUNK_SIZE, chunks) * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    }
+}
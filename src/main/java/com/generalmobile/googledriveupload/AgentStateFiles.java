@@ -0,0 +1,45 @@
+package com.generalmobile.googledriveupload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Reads and writes the properties files the uploads keep on the agent between builds.
+ */
+final class AgentStateFiles {
+    private AgentStateFiles() {
+    }
+
+    /**
+     * @return the properties of the file, empty when the file is missing or unreadable
+     */
+    static Properties load(final Path file) {
+        Properties properties = new Properties();
+        if (Files.isRegularFile(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                return new Properties();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Replaces the file atomically, a crash while writing never leaves a truncated file behind.
+     */
+    static void store(final Path file, final Properties properties, final String comment) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            properties.store(out, comment);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
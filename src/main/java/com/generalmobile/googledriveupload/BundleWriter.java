@@ -0,0 +1,131 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * Writes the files of an upload into a zip or tar.gz archive, streamed to the upload instead of stored on disk.
+ * Runs on its own thread, so compressing and sending the archive overlap.
+ */
+class BundleWriter implements Runnable {
+    private final Path root;
+    private final Collection<Path> sources;
+    private final UploadExcludes excludes;
+    private final ArchiverFactory archiverFactory;
+    private final OutputStream out;
+    private volatile int bundledFiles;
+    private volatile IOException failure;
+
+    BundleWriter(final Path root, final Collection<Path> sources, final ArchiverFactory archiverFactory, final OutputStream out) {
+        this(root, sources, UploadExcludes.NONE, archiverFactory, out);
+    }
+
+    BundleWriter(final Path root, final Collection<Path> sources, final UploadExcludes excludes, final ArchiverFactory archiverFactory,
+                 final OutputStream out) {
+        this.root = root;
+        this.sources = sources;
+        this.excludes = excludes;
+        this.archiverFactory = archiverFactory;
+        this.out = out;
+    }
+
+    /**
+     * @return the archiver for the name of the bundle, by its extension
+     * @throws IllegalArgumentException when the extension is not .zip, .tar.gz or .tgz
+     */
+    static ArchiverFactory archiverFor(final String bundleName) {
+        String name = bundleName.toLowerCase(Locale.ENGLISH);
+        if (name.endsWith(".zip")) {
+            return ArchiverFactory.ZIP;
+        }
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return ArchiverFactory.TARGZ;
+        }
+        throw new IllegalArgumentException("Bundle " + bundleName + " should end with .zip, .tar.gz or .tgz");
+    }
+
+    static String contentType(final String bundleName) {
+        return archiverFor(bundleName) == ArchiverFactory.ZIP ? "application/zip" : "application/gzip";
+    }
+
+    @Override
+    public void run() {
+        try {
+            try (Archiver archiver = archiverFactory.create(out)) {
+                for (Path file : listFiles(sources, excludes)) {
+                    archiver.visit(file.toFile(), entryName(file));
+                }
+                bundledFiles = archiver.countEntries();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            try {
+                // Ends the upload, also after a failure
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    int getBundledFiles() {
+        return bundledFiles;
+    }
+
+    /**
+     * @return why the archive could not be written, null when it was
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the regular files of the sources, directories expanded without what is excluded, in a stable order and without duplicates
+     */
+    static List<Path> listFiles(final Collection<Path> sources, final UploadExcludes excludes) throws IOException {
+        TreeSet<Path> files = new TreeSet<>();
+        for (Path source : sources) {
+            if (Files.isDirectory(source)) {
+                Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attributes) {
+                        // Excluded directories are skipped whole, like in the walk for the upload patterns
+                        return dir.equals(source) || !excludes.isExcluded(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                        if (attributes.isRegularFile() && !excludes.isExcluded(file)) {
+                            files.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } else if (Files.isRegularFile(source)) {
+                files.add(source);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private String entryName(final Path file) {
+        Path relative = file.startsWith(root) ? root.relativize(file) : file.getFileName();
+        return relative.toString().replace('\\', '/');
+    }
+}
@@ -0,0 +1,250 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The credentials the requests of one Drive client are spread over.
+ * Drive quotas are per user, so every credentials has its own request rate. Requests go round robin to
+ * the credentials that have a request left in their rate. Credentials Drive answers with 429, or 403 with
+ * a rate limit reason, are skipped for a cooldown that doubles while they stay throttled. Credentials
+ * answered with 403 for a lack of access are taken out of the pool, the others have the access.
+ * A pool of one credentials behaves like that credentials alone.
+ * Requests that must come from one user, like the chunks of a resumable upload, are sent under a {@link Pin}.
+ */
+class CredentialPool {
+    static final long MIN_COOLDOWN_MILLIS = 1000;
+    static final long MAX_COOLDOWN_MILLIS = 64000;
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+    private static final int STATUS_FORBIDDEN = 403;
+    private static final Set<String> ACCESS_REASONS = new HashSet<>(Arrays.asList("insufficientFilePermissions",
+        "insufficientPermissions", "domainPolicy", "appNotAuthorizedToFile", "teamDriveMembershipRequired"));
+    // The credentials of the last request of the thread Drive answered with 403, until the reason is known
+    private static final ThreadLocal<Forbidden> FORBIDDEN = new ThreadLocal<>();
+    private static final ThreadLocal<Pin> PIN = new ThreadLocal<>();
+
+    /**
+     * One credentials of the pool.
+     */
+    static class Member {
+        final String credentialsId;
+        final RequestRateLimiter rateLimiter;
+        volatile Credential credential;
+        // Guarded by the pool
+        private long throttledUntil;
+        private int throttles;
+        private boolean removed;
+
+        Member(final String credentialsId, final Credential credential, final RequestRateLimiter rateLimiter) {
+            this.credentialsId = credentialsId;
+            this.credential = credential;
+            this.rateLimiter = rateLimiter;
+        }
+    }
+
+    private static class Forbidden {
+        final CredentialPool pool;
+        final Member member;
+
+        Forbidden(final CredentialPool pool, final Member member) {
+            this.pool = pool;
+            this.member = member;
+        }
+    }
+
+    /**
+     * Sends all requests of the thread to one credentials per pool until closed.
+     */
+    static final class Pin implements AutoCloseable {
+        private final Map<CredentialPool, Member> members = new IdentityHashMap<>();
+
+        @Override
+        public void close() {
+            PIN.remove();
+        }
+    }
+
+    private final List<Member> members;
+    // Guarded by this
+    private int next;
+
+    CredentialPool(final List<Member> members) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A credential pool needs credentials");
+        }
+        this.members = new ArrayList<>(members);
+    }
+
+    /**
+     * @return all credentials, including the ones taken out of the pool, in the order they were given
+     */
+    List<Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * Pins the requests of the calling thread: the first request picks the credentials as usual,
+     * the following ones use the same credentials, throttled or not.
+     */
+    static Pin pin() {
+        Pin pin = new Pin();
+        PIN.set(pin);
+        return pin;
+    }
+
+    /**
+     * Picks the credentials for a request and takes a request from its rate, waiting when every
+     * credentials used up its rate.
+     */
+    Member select() throws InterruptedIOException {
+        Pin pin = PIN.get();
+        Member pinned = pin != null ? pin.members.get(this) : null;
+        if (pinned != null) {
+            if (pinned.rateLimiter != null) {
+                pinned.rateLimiter.acquire();
+            }
+            return pinned;
+        }
+        Member selected = selectAny();
+        if (pin != null) {
+            pin.members.put(this, selected);
+        }
+        return selected;
+    }
+
+    private Member selectAny() throws InterruptedIOException {
+        Member waitFor;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            List<Member> available = new ArrayList<>();
+            for (Member member : members) {
+                if (!member.removed) {
+                    available.add(member);
+                }
+            }
+            List<Member> candidates = new ArrayList<>();
+            for (Member member : available) {
+                if (member.throttledUntil <= now) {
+                    candidates.add(member);
+                }
+            }
+            if (candidates.isEmpty()) {
+                // All throttled, the one throttled the shortest goes first, its request is retried when still throttled
+                Member earliest = available.get(0);
+                for (Member member : available) {
+                    if (member.throttledUntil < earliest.throttledUntil) {
+                        earliest = member;
+                    }
+                }
+                candidates.add(earliest);
+            }
+            for (int i = 0; i < candidates.size(); i++) {
+                Member member = candidates.get((next + i) % candidates.size());
+                if (member.rateLimiter == null || member.rateLimiter.tryAcquire()) {
+                    next = (next + i + 1) % members.size();
+                    return member;
+                }
+            }
+            waitFor = candidates.get(0);
+            for (Member member : candidates) {
+                if (member.rateLimiter.getAvailable() > waitFor.rateLimiter.getAvailable()) {
+                    waitFor = member;
+                }
+            }
+        }
+        waitFor.rateLimiter.acquire();
+        return waitFor;
+    }
+
+    /**
+     * Records how Drive answered a request sent with the credentials. The reason of a 403 is in the body
+     * of the answer, which is left to the caller: it hands the reason in through {@link #forbidden(GoogleJsonError)}.
+     */
+    synchronized void responded(final Member member, final int statusCode) {
+        FORBIDDEN.remove();
+        if (statusCode == STATUS_TOO_MANY_REQUESTS) {
+            throttled(member);
+        } else if (statusCode == STATUS_FORBIDDEN) {
+            FORBIDDEN.set(new Forbidden(this, member));
+        } else if (statusCode < 400) {
+            member.throttles = 0;
+        }
+    }
+
+    /**
+     * Hands in the reason of the last 403 answer the calling thread got.
+     * @return whether the credentials of the request were taken out of the pool, another credentials may succeed
+     */
+    static boolean forbidden(final GoogleJsonError error) {
+        Forbidden forbidden = FORBIDDEN.get();
+        FORBIDDEN.remove();
+        if (forbidden == null || error == null || error.getErrors() == null) {
+            return false;
+        }
+        List<String> reasons = new ArrayList<>();
+        for (GoogleJsonError.ErrorInfo errorInfo : error.getErrors()) {
+            reasons.add(errorInfo.getReason());
+        }
+        return forbidden.pool.forbidden(forbidden.member, reasons);
+    }
+
+    synchronized boolean forbidden(final Member member, final List<String> reasons) {
+        if (!Collections.disjoint(reasons, DriveRequestExecutor.RATE_LIMIT_REASONS)) {
+            throttled(member);
+            return false;
+        }
+        if (Collections.disjoint(reasons, ACCESS_REASONS) || member.removed) {
+            return false;
+        }
+        // The last credentials stays, its requests fail like they would without a pool
+        for (Member other : members) {
+            if (other != member && !other.removed) {
+                member.removed = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void throttled(final Member member) {
+        member.throttles++;
+        member.throttledUntil = System.currentTimeMillis()
+            + Math.min(MAX_COOLDOWN_MILLIS, MIN_COOLDOWN_MILLIS << Math.min(member.throttles - 1, 16));
+    }
+
+    /**
+     * Puts every credentials back into the pool and ends their cooldowns. A step starting on an idle pool
+     * hands in fresh credentials, whose access may have been granted since.
+     */
+    synchronized void reset() {
+        for (Member member : members) {
+            member.removed = false;
+            member.throttles = 0;
+            member.throttledUntil = 0;
+        }
+    }
+
+    /**
+     * @return whether requests currently avoid the credentials
+     */
+    synchronized boolean isThrottled(final Member member) {
+        return member.throttledUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * @return whether the credentials were taken out of the pool
+     */
+    synchronized boolean isRemoved(final Member member) {
+        return member.removed;
+    }
+}
@@ -0,0 +1,93 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The calls of a batch with their callbacks. Drive answers every call of a batch on its own, so some calls
+ * may be rejected by a rate limit while the others succeed: those are handed back to be sent again in
+ * a later batch, the way {@link DriveRequestExecutor} retries a single call. A batch request that fails
+ * as a whole may have answered some calls before, executing it again only sends the calls without an answer.
+ */
+class DriveBatch {
+
+    private static class QueuedCall<T> {
+        final AbstractGoogleJsonClientRequest<T> request;
+        final JsonBatchCallback<T> callback;
+        // Whether the callback got the answer, the call is not sent again
+        boolean answered;
+
+        QueuedCall(final AbstractGoogleJsonClientRequest<T> request, final JsonBatchCallback<T> callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+
+        void queue(final BatchRequest batch, final boolean retryRateLimited, final DriveBatch rateLimited) throws IOException {
+            request.queue(batch, new JsonBatchCallback<T>() {
+                @Override
+                public void onSuccess(final T result, final HttpHeaders httpHeaders) throws IOException {
+                    answered = true;
+                    callback.onSuccess(result, httpHeaders);
+                }
+
+                @Override
+                public void onFailure(final GoogleJsonError error, final HttpHeaders httpHeaders) throws IOException {
+                    if (retryRateLimited && DriveRequestExecutor.isRateLimited(error)) {
+                        rateLimited.calls.add(QueuedCall.this);
+                    } else {
+                        answered = true;
+                        callback.onFailure(error, httpHeaders);
+                    }
+                }
+            });
+        }
+    }
+
+    private final List<QueuedCall<?>> calls = new ArrayList<>();
+
+    <T> void queue(final AbstractGoogleJsonClientRequest<T> request, final JsonBatchCallback<T> callback) {
+        calls.add(new QueuedCall<>(request, callback));
+    }
+
+    int size() {
+        return calls.size();
+    }
+
+    /**
+     * @return the number of calls without an answer yet
+     */
+    int unanswered() {
+        int unanswered = 0;
+        for (QueuedCall<?> call : calls) {
+            if (!call.answered) {
+                unanswered++;
+            }
+        }
+        return unanswered;
+    }
+
+    /**
+     * Sends the calls without an answer in one batch request, the callbacks are called as the answers come in.
+     * @param retryRateLimited whether calls rejected by a rate limit are handed back instead of failing
+     * @return the calls rejected by a rate limit, to send again
+     */
+    DriveBatch execute(final BatchRequest batch, final boolean retryRateLimited) throws IOException {
+        DriveBatch rateLimited = new DriveBatch();
+        for (QueuedCall<?> call : calls) {
+            if (!call.answered) {
+                call.queue(batch, retryRateLimited, rateLimited);
+            }
+        }
+        if (batch.size() > 0) {
+            batch.execute();
+        }
+        return rateLimited;
+    }
+}
@@ -0,0 +1,242 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.Sleeper;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Drive calls, retrying the ones that failed for a passing reason: rate limits (429, or 403 with
+ * a rate limit reason), server errors and network timeouts. Retries back off exponentially with jitter,
+ * so parallel uploads hitting the same limit do not retry in lock step.
+ * Every retry and the time spent backing off are counted in the {@link UploadStatistics} of the step.
+ */
+class DriveRequestExecutor {
+    static final int DEFAULT_MAX_RETRIES = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 32000;
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+    private static final int STATUS_CONFLICT = 409;
+    private static final long SHARE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(5);
+    static final Set<String> RATE_LIMIT_REASONS = new HashSet<>(Arrays.asList("userRateLimitExceeded", "rateLimitExceeded"));
+
+    /**
+     * A Drive call, building a fresh request on every attempt since media uploads cannot be executed twice.
+     */
+    interface DriveCall<T> {
+        T execute() throws IOException;
+    }
+
+    private final TaskListener listener;
+    private final UploadStatistics statistics;
+    private final AtomicInteger calls = new AtomicInteger();
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private Sleeper sleeper = Sleeper.DEFAULT;
+    private RequestShare share;
+    private RequestRateLimiter budget;
+    private long nextShareRefresh;
+
+    DriveRequestExecutor(final TaskListener listener, final UploadStatistics statistics) {
+        this.listener = listener;
+        this.statistics = statistics;
+    }
+
+    void setMaxRetries(final int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
+    void setSleeper(final Sleeper sleeper) {
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * The share of the request rate the {@link UploadScheduler} granted this step, every attempt takes from it.
+     * The share is asked again every few seconds, it changes as other steps start and finish.
+     */
+    synchronized void setShare(final RequestShare share) {
+        this.share = share;
+        this.budget = null;
+        this.nextShareRefresh = System.nanoTime();
+    }
+
+    /**
+     * Takes requests from the budget, for calls that send more than one request, like batches.
+     */
+    void acquireBudget(final int requests) throws InterruptedIOException {
+        RequestRateLimiter currentBudget = getBudget();
+        if (currentBudget != null) {
+            for (int i = 0; i < requests; i++) {
+                currentBudget.acquire();
+            }
+        }
+    }
+
+    private synchronized RequestRateLimiter getBudget() {
+        long now = System.nanoTime();
+        if (share != null && now - nextShareRefresh >= 0) {
+            nextShareRefresh = now + SHARE_REFRESH_NANOS;
+            int requestsPerSecond = share.getRequestsPerSecond();
+            if (requestsPerSecond <= 0) {
+                budget = null;
+            } else if (budget == null) {
+                budget = new RequestRateLimiter(requestsPerSecond);
+            } else {
+                budget.setRequestsPerSecond(requestsPerSecond);
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * @return the number of calls executed, not counting their retries
+     */
+    int getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @param description what the call does, for the build log
+     */
+    <T> T execute(final String description, final DriveCall<T> call) throws IOException {
+        calls.incrementAndGet();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                acquireBudget(1);
+                return call.execute();
+            } catch (IOException e) {
+                boolean otherCredentials = reportForbidden(e);
+                if (attempt >= maxRetries || !(otherCredentials || isRetryable(e))) {
+                    throw e;
+                }
+                backOff(description, describe(e), attempt);
+            }
+        }
+    }
+
+    /**
+     * Runs a call creating a file or folder, which Drive does not do idempotently: a create that timed out
+     * or failed with a server error may still have created it. Before a retry the created file is looked up,
+     * and when found it is the result instead of a duplicate. A create with a pre-generated id failing
+     * with 409 on a retry was done by an earlier attempt.
+     * @param findCreated looks up what the create makes, null when it does not exist
+     */
+    <T> T executeCreate(final String description, final DriveCall<T> create, final DriveCall<T> findCreated) throws IOException {
+        calls.incrementAndGet();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (attempt > 0) {
+                    acquireBudget(1);
+                    T created = findCreated.execute();
+                    if (created != null) {
+                        listener.getLogger().printf("Not retrying %s, the previous attempt succeeded%n", description);
+                        return created;
+                    }
+                }
+                acquireBudget(1);
+                return create.execute();
+            } catch (IOException e) {
+                boolean otherCredentials = reportForbidden(e);
+                if (attempt > 0 && isConflict(e)) {
+                    T created = findCreated.execute();
+                    if (created != null) {
+                        listener.getLogger().printf("Not retrying %s, the previous attempt succeeded%n", description);
+                        return created;
+                    }
+                }
+                if (attempt >= maxRetries || !(otherCredentials || isRetryable(e))) {
+                    throw e;
+                }
+                backOff(description, describe(e), attempt);
+            }
+        }
+    }
+
+    /**
+     * Hands the reason of a 403 to the {@link CredentialPool} of the client, it knows which credentials sent the call.
+     * @return whether the credentials lacked access and were taken out of the pool, other credentials may succeed
+     */
+    private static boolean reportForbidden(final IOException e) {
+        boolean forbidden = e instanceof GoogleJsonResponseException && ((GoogleJsonResponseException) e).getStatusCode() == 403;
+        return CredentialPool.forbidden(forbidden ? ((GoogleJsonResponseException) e).getDetails() : null);
+    }
+
+    /**
+     * Waits before the next attempt of a call, counted as a retry.
+     * @param reason why the previous attempt failed, for the build log
+     */
+    void backOff(final String description, final String reason, final int attempt) throws InterruptedIOException {
+        long backoffMillis = backoffMillis(attempt);
+        listener.getLogger().printf("Retrying %s after %s%n", description, reason);
+        statistics.retried(backoffMillis);
+        try {
+            sleeper.sleep(backoffMillis);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off " + description);
+        }
+    }
+
+    static boolean isRetryable(final IOException e) {
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            if (status == STATUS_TOO_MANY_REQUESTS || status >= 500) {
+                return true;
+            }
+            if (status == 403 && e instanceof GoogleJsonResponseException) {
+                return isRateLimited(((GoogleJsonResponseException) e).getDetails());
+            }
+            return false;
+        }
+        return e instanceof SocketTimeoutException || e instanceof SocketException;
+    }
+
+    /**
+     * @return whether Drive rejected a call for a rate limit, 429 or 403 with a rate limit reason
+     */
+    static boolean isRateLimited(final GoogleJsonError error) {
+        if (error == null) {
+            return false;
+        }
+        if (error.getCode() == STATUS_TOO_MANY_REQUESTS) {
+            return true;
+        }
+        return error.getErrors() != null
+            && error.getErrors().stream().anyMatch(details -> RATE_LIMIT_REASONS.contains(details.getReason()));
+    }
+
+    private static boolean isConflict(final IOException e) {
+        return e instanceof HttpResponseException && ((HttpResponseException) e).getStatusCode() == STATUS_CONFLICT;
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": a random time between half and all of the exponential delay.
+     */
+    private static long backoffMillis(final int attempt) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static String describe(final IOException e) {
+        if (e instanceof HttpResponseException) {
+            HttpResponseException responseException = (HttpResponseException) e;
+            return responseException.getStatusCode() + " " + responseException.getStatusMessage();
+        }
+        return e.getClass().getSimpleName();
+    }
+}
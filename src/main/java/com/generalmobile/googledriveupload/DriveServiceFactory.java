@@ -0,0 +1,247 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides the Drive clients used by the steps, on the agent for uploads and on the controller for cleanups.
+ * One HTTP transport, and so one trust store and one pool of kept alive connections, is shared by all clients
+ * of the JVM with the same {@link TransportSettings}, and one Drive client is kept per credentials and settings.
+ * Every step call hands in the credentials it got,
+ * the pooled client then uses their (fresh) access token. A client for several credentials spreads
+ * its requests over them through a {@link CredentialPool}. A step holds its client through a {@link Lease},
+ * clients without a lease idle for {@link #IDLE_TIMEOUT_MINUTES} are evicted by a timer running while any
+ * transport is open, and a transport is shut down with its last client, so never while a step uses it.
+ */
+final class DriveServiceFactory {
+    // Drive only gzips responses for clients whose user agent contains "gzip", the client already accepts gzip
+    static final String APPLICATION_NAME = "Jenkins drive uploader (gzip)";
+    static final long IDLE_TIMEOUT_MINUTES = Long.getLong(DriveServiceFactory.class.getName() + ".idleMinutes", 10);
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private static final long EVICTION_PERIOD_SECONDS = 60;
+
+    // Guarded by the class lock
+    private static final Map<TransportSettings, SharedTransport> TRANSPORTS = new HashMap<>();
+    private static final ScheduledThreadPoolExecutor EVICTOR = newEvictor();
+    // Guarded by the class lock, set while any transport is open
+    private static ScheduledFuture<?> eviction;
+
+    /**
+     * A transport with the clients using it, by credentials ids.
+     */
+    private static class SharedTransport {
+        final HttpTransport transport;
+        final Map<String, PooledClient> clients = new HashMap<>();
+
+        SharedTransport(final HttpTransport transport) {
+            this.transport = transport;
+        }
+    }
+
+    /**
+     * A Drive client that authorizes its requests with the credentials of the latest step call.
+     */
+    private static class PooledClient implements HttpRequestInitializer {
+        final Drive drive;
+        final TransportSettings settings;
+        final CredentialPool credentials;
+        volatile long lastUsed;
+        // The steps using the client, guarded by the class lock
+        int leases;
+
+        PooledClient(final HttpTransport transport, final TransportSettings settings, final CredentialPool credentials) {
+            this.settings = settings;
+            this.credentials = credentials;
+            this.drive = new Drive.Builder(transport, JSON_FACTORY, this)
+                .setApplicationName(APPLICATION_NAME)
+                .build();
+        }
+
+        @Override
+        public void initialize(final HttpRequest request) throws IOException {
+            // Every request counts as use, a long upload keeps its client
+            lastUsed = System.currentTimeMillis();
+            // Requests are initialized when executed and when queued in a batch, so batched calls count one by one
+            CredentialPool.Member member = credentials.select();
+            settings.configure(request);
+            member.credential.initialize(request);
+            request.setResponseInterceptor(response -> credentials.responded(member, response.getStatusCode()));
+        }
+    }
+
+    /**
+     * The use of a pooled client by a step, the client and its transport are kept until the lease is closed.
+     */
+    static final class Lease implements AutoCloseable {
+        private final PooledClient client;
+        private boolean closed;
+
+        private Lease(final PooledClient client) {
+            this.client = client;
+        }
+
+        Drive getDrive() {
+            return client.drive;
+        }
+
+        @Override
+        public void close() {
+            synchronized (DriveServiceFactory.class) {
+                if (!closed) {
+                    closed = true;
+                    client.leases--;
+                    client.lastUsed = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    private DriveServiceFactory() {
+    }
+
+    static Lease lease(final GoogleRobotCredentials credentials, final DriveScopeRequirement requirement,
+                       final TransportSettings settings) throws GeneralSecurityException, IOException {
+        return lease(Collections.singletonList(credentials), requirement, settings);
+    }
+
+    /**
+     * @param credentials the credentials to spread the requests over, all with access to the same files
+     */
+    static Lease lease(final List<GoogleRobotCredentials> credentials, final DriveScopeRequirement requirement,
+                       final TransportSettings settings) throws GeneralSecurityException, IOException {
+        List<String> credentialsIds = new ArrayList<>();
+        List<Credential> googleCredentials = new ArrayList<>();
+        for (GoogleRobotCredentials member : credentials) {
+            credentialsIds.add(member.getId());
+            googleCredentials.add(member.getGoogleCredential(requirement));
+        }
+        return lease(credentialsIds, googleCredentials, settings, System.currentTimeMillis());
+    }
+
+    static synchronized Lease lease(final List<String> credentialsIds, final List<Credential> googleCredentials,
+                                    final TransportSettings settings, final long now) throws GeneralSecurityException, IOException {
+        evictIdleClients(now);
+        SharedTransport transport = TRANSPORTS.get(settings);
+        if (transport == null) {
+            transport = new SharedTransport(settings.newTransport());
+            TRANSPORTS.put(settings, transport);
+        }
+        String key = String.join(",", credentialsIds);
+        PooledClient client = transport.clients.get(key);
+        if (client == null) {
+            List<CredentialPool.Member> members = new ArrayList<>();
+            for (int i = 0; i < credentialsIds.size(); i++) {
+                // Drive quotas are per user, every credentials gets the full rate
+                members.add(new CredentialPool.Member(credentialsIds.get(i), googleCredentials.get(i), settings.newRateLimiter()));
+            }
+            client = new PooledClient(transport.transport, settings, new CredentialPool(members));
+            transport.clients.put(key, client);
+        } else {
+            List<CredentialPool.Member> members = client.credentials.getMembers();
+            for (int i = 0; i < members.size(); i++) {
+                members.get(i).credential = googleCredentials.get(i);
+            }
+            // Steps still running keep what their pool learned, a step starting alone gets a fresh pool
+            if (client.leases == 0) {
+                client.credentials.reset();
+            }
+        }
+        client.lastUsed = now;
+        client.leases++;
+        if (eviction == null) {
+            eviction = EVICTOR.scheduleWithFixedDelay(DriveServiceFactory::evictIdleClients,
+                EVICTION_PERIOD_SECONDS, EVICTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
+        return new Lease(client);
+    }
+
+    /**
+     * @return whether a transport with the settings is open, for tests
+     */
+    static synchronized boolean hasTransport(final TransportSettings settings) {
+        return TRANSPORTS.containsKey(settings);
+    }
+
+    /**
+     * @return whether the eviction timer runs, for tests
+     */
+    static synchronized boolean isEvictionScheduled() {
+        return eviction != null;
+    }
+
+    /**
+     * Shuts down all transports, for tests.
+     */
+    static synchronized void clear() throws IOException {
+        for (SharedTransport transport : TRANSPORTS.values()) {
+            transport.transport.shutdown();
+        }
+        TRANSPORTS.clear();
+        cancelEviction();
+    }
+
+    private static ScheduledThreadPoolExecutor newEvictor() {
+        ScheduledThreadPoolExecutor evictor = new ScheduledThreadPoolExecutor(1,
+            new NamingThreadFactory(new DaemonThreadFactory(), "GoogleDriveClientEviction"));
+        // No thread is left behind once the last transport is gone
+        evictor.setRemoveOnCancelPolicy(true);
+        evictor.setKeepAliveTime(EVICTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+        evictor.allowCoreThreadTimeOut(true);
+        return evictor;
+    }
+
+    private static void evictIdleClients() {
+        try {
+            evictIdleClients(System.currentTimeMillis());
+        } catch (IOException e) {
+            // The transport is dropped all the same, there is nothing left to shut down
+        }
+    }
+
+    static synchronized void evictIdleClients(final long now) throws IOException {
+        Iterator<SharedTransport> transports = TRANSPORTS.values().iterator();
+        try {
+            while (transports.hasNext()) {
+                SharedTransport transport = transports.next();
+                transport.clients.values().removeIf(client ->
+                    client.leases == 0 && now - client.lastUsed > TimeUnit.MINUTES.toMillis(IDLE_TIMEOUT_MINUTES));
+                if (transport.clients.isEmpty()) {
+                    transports.remove();
+                    transport.transport.shutdown();
+                }
+            }
+        } finally {
+            if (TRANSPORTS.isEmpty()) {
+                cancelEviction();
+            }
+        }
+    }
+
+    private static void cancelEviction() {
+        if (eviction != null) {
+            eviction.cancel(false);
+            eviction = null;
+        }
+    }
+}
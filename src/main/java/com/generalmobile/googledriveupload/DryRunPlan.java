@@ -0,0 +1,139 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What an upload would do, collected by a dry run instead of writing to Drive.
+ * Folders that would be created are stood in for by placeholders, so everything below them is planned as new
+ * without asking Drive. The API calls are estimated the way the upload sends them, the quota counts every call
+ * of a batch on its own since Drive does.
+ */
+class DryRunPlan {
+    private static final String PLANNED_FOLDER_ID_PREFIX = "dry-run-";
+    private static final int MAX_GENERATED_IDS = 1000;
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final AtomicInteger plannedFolders = new AtomicInteger();
+    private final AtomicInteger createdFiles = new AtomicInteger();
+    private final AtomicInteger updatedFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicInteger trashedFiles = new AtomicInteger();
+    private final AtomicLong transferBytes = new AtomicLong();
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong writeQuota = new AtomicLong();
+
+    /**
+     * Plans the creation of folders, one alone is created with a single call, more have their ids reserved
+     * and are created in batches.
+     * @return the placeholders of the folders, in the order of the names
+     */
+    List<File> createFolders(final List<String> names) {
+        List<File> folders = new ArrayList<>();
+        for (String name : names) {
+            folders.add(new File()
+                .setId(PLANNED_FOLDER_ID_PREFIX + plannedFolders.incrementAndGet())
+                .setName(name)
+                .setMimeType(ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE));
+        }
+        if (names.size() == 1) {
+            addCalls(1, 1);
+        } else if (names.size() > 1) {
+            long generateIdsCalls = divideRoundingUp(names.size(), MAX_GENERATED_IDS);
+            addCalls(generateIdsCalls + divideRoundingUp(names.size(), MAX_BATCH_SIZE), generateIdsCalls + names.size());
+        }
+        return folders;
+    }
+
+    /**
+     * Plans a batch of calls, like the permissions of a new folder.
+     */
+    void batch(final int batchedCalls) {
+        addCalls(divideRoundingUp(batchedCalls, MAX_BATCH_SIZE), batchedCalls);
+    }
+
+    /**
+     * Plans the upload of a file, in one call when direct, else in a call opening the session and one call per chunk.
+     */
+    void upload(final boolean update, final long size, final boolean direct, final int chunkSize) {
+        (update ? updatedFiles : createdFiles).incrementAndGet();
+        transferBytes.addAndGet(size);
+        long calls = direct ? 1 : 1 + Math.max(1, divideRoundingUp(size, chunkSize));
+        addCalls(calls, calls);
+    }
+
+    void skip() {
+        skippedFiles.incrementAndGet();
+    }
+
+    /**
+     * Plans moving files and folders to the trash, in batches.
+     */
+    void trash(final int count) {
+        trashedFiles.addAndGet(count);
+        batch(count);
+    }
+
+    static boolean isPlanned(final File folder) {
+        return folder != null && folder.getId() != null && folder.getId().startsWith(PLANNED_FOLDER_ID_PREFIX);
+    }
+
+    int getPlannedFolders() {
+        return plannedFolders.get();
+    }
+
+    int getCreatedFiles() {
+        return createdFiles.get();
+    }
+
+    int getUpdatedFiles() {
+        return updatedFiles.get();
+    }
+
+    int getSkippedFiles() {
+        return skippedFiles.get();
+    }
+
+    int getTrashedFiles() {
+        return trashedFiles.get();
+    }
+
+    long getTransferBytes() {
+        return transferBytes.get();
+    }
+
+    long getWriteCalls() {
+        return writeCalls.get();
+    }
+
+    long getWriteQuota() {
+        return writeQuota.get();
+    }
+
+    /**
+     * @param readCalls the lookups and listings made for the plan, an upload makes them as well
+     */
+    void print(final PrintStream logger, final int readCalls) {
+        logger.printf("Dry run: %d folder(s) to create, %d file(s) to create, %d to update, %d unchanged to skip%n",
+            getPlannedFolders(), getCreatedFiles(), getUpdatedFiles(), getSkippedFiles());
+        if (getTrashedFiles() > 0) {
+            logger.printf("Dry run: %d remote-only file(s) and folder(s) to trash%n", getTrashedFiles());
+        }
+        logger.printf("Dry run: %d bytes to transfer in about %d Drive call(s) (%d read, %d write), about %d requests of quota%n",
+            getTransferBytes(), readCalls + getWriteCalls(), readCalls, getWriteCalls(), readCalls + getWriteQuota());
+    }
+
+    private void addCalls(final long calls, final long quota) {
+        writeCalls.addAndGet(calls);
+        writeQuota.addAndGet(quota);
+    }
+
+    private static long divideRoundingUp(final long dividend, final long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+}
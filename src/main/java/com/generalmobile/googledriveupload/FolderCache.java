@@ -0,0 +1,67 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remote folders resolved during one step invocation, keyed by parent folder id and folder name.
+ * Filled by folder lookups as well as by newly created folders, so every remote folder
+ * is searched for at most once per step.
+ * Also keeps the name to file map of every folder that has been listed.
+ */
+class FolderCache {
+    private final Map<String, File> folders = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, File>> contents = new ConcurrentHashMap<>();
+
+    Optional<File> get(final String parentId, final String name) {
+        return Optional.ofNullable(folders.get(key(parentId, name)));
+    }
+
+    void put(final String parentId, final String name, final File folder) {
+        if (folder != null) {
+            folders.put(key(parentId, name), folder);
+        }
+    }
+
+    /**
+     * @return the listed content of the folder, or null when the folder has not been listed yet
+     */
+    Map<String, File> getContents(final String folderId) {
+        return contents.get(folderId);
+    }
+
+    /**
+     * Registers the listed content of a folder, sub folders found in the listing are cached as well.
+     */
+    Map<String, File> putContents(final String folderId, final Map<String, File> folderContents) {
+        Map<String, File> concurrentContents = new ConcurrentHashMap<>(folderContents);
+        for (File file : folderContents.values()) {
+            if (ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE.equals(file.getMimeType())) {
+                put(folderId, file.getName(), file);
+            }
+        }
+        contents.put(folderId, concurrentContents);
+        return concurrentContents;
+    }
+
+    /**
+     * Registers a folder that was just created, its (empty) content is known without listing it.
+     */
+    void putNewFolder(final String parentId, final String name, final File folder) {
+        if (folder != null) {
+            put(parentId, name, folder);
+            contents.put(folder.getId(), new ConcurrentHashMap<>());
+            Map<String, File> parentContents = contents.get(parentId);
+            if (parentContents != null) {
+                parentContents.put(name, folder);
+            }
+        }
+    }
+
+    private static String key(final String parentId, final String name) {
+        return parentId + "/" + name;
+    }
+}
@@ -0,0 +1,105 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.jenkins.plugins.credentials.domains.DomainRequirementProvider;
+import com.google.jenkins.plugins.credentials.domains.RequiresDomain;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.Serializable;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Deletes files by name, and optionally by type, from My Drive or a Shared Drive.
+ * Returns the number of deleted files.
+ */
+@RequiresDomain(value = DriveScopeRequirement.class)
+public final class GoogleDriveCleanup extends Step implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String credentialsId;
+    private final String names;
+    private String mimeType = "";
+    private String sharedDriveName = "";
+    private String sharedDriveId = "";
+
+    @DataBoundConstructor
+    public GoogleDriveCleanup(String credentialsId, String names) {
+        this.credentialsId = checkNotNull(credentialsId);
+        this.names = checkNotNull(names);
+    }
+
+    @DataBoundSetter
+    public void setMimeType(String mimeType) {
+        this.mimeType = checkNotNull(mimeType);
+    }
+
+    @DataBoundSetter
+    public void setSharedDriveName(String sharedDriveName) {
+        this.sharedDriveName = checkNotNull(sharedDriveName);
+    }
+
+    @DataBoundSetter
+    public void setSharedDriveId(String sharedDriveId) {
+        this.sharedDriveId = checkNotNull(sharedDriveId);
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getNames() {
+        return names;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public String getSharedDriveName() {
+        return sharedDriveName;
+    }
+
+    public String getSharedDriveId() {
+        return sharedDriveId;
+    }
+
+    DriveScopeRequirement getRequirement() {
+        return DomainRequirementProvider.of(getClass(), DriveScopeRequirement.class);
+    }
+
+    @Override
+    public StepExecution start(StepContext stepContext) throws Exception {
+        return new GoogleDriveCleanupExecution(this, stepContext);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        public DescriptorImpl() {}
+
+        @Override
+        public String getDisplayName() {
+            return "Google Drive Cleanup";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(TaskListener.class, Run.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "googleDriveCleanup";
+        }
+    }
+}
@@ -1,57 +1,65 @@
 package com.generalmobile.googledriveupload;
 
-import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
-import com.google.api.client.http.FileContent;
+import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveRequest;
 import com.google.api.services.drive.model.File;
-import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.Permission;
 import com.google.common.base.Joiner;
 import hudson.model.TaskListener;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
 class GoogleDriveManager extends ManagerBase {
+    private static final String ROOT_FOLDER = "root";
     
     GoogleDriveManager(final Drive driveService, final TaskListener listener) {
         super(driveService, listener);
     }
 
     void uploadFolder(java.io.File source, String destFolderName, String userMail) {
+        submitFolder(source, destFolderName, userMail);
+        awaitUploads();
+    }
+
+    /**
+     * Resolves the folders of the source and hands its files to the upload executor without waiting for them.
+     */
+    void submitFolder(java.io.File source, String destFolderName, String userMail) {
+        submitFolder(source, destFolderName, userMail, Collections.emptyList());
+    }
+
+    /**
+     * Like {@link #submitFolder(java.io.File, String, String)}, for a source in the given sub folders of the destination.
+     */
+    void submitFolder(java.io.File source, String destFolderName, String userMail, List<String> subFolders) {
         listener.getLogger().printf("userMail %s%n", userMail);
         File destFolder = findDestFolderInDrive(destFolderName, userMail);
         if (destFolder != null) {
-            uploadFile(source, destFolder);
+            uploadFile(source, destFolder, subFolders);
         }
     }
 
-    @Override
-    protected Optional<File> findInFolderByQuery(final String query){
-        try {
-            String pageToken = null;
-            do {
-                FileList result = drive.files().list()
-                    .setQ(query)
-                    .setPageToken(pageToken)
-                    .execute();
-                for (File file : result.getFiles()) {
-                    listener.getLogger().printf("Found %s (%s)%n", file.getName(), file.getId());
-                    return Optional.of(file);
-                }
-                pageToken = result.getNextPageToken();
-            } while (pageToken != null);
-        } catch (IOException e) {
-            listener.error(e.getMessage());
+    void uploadBundle(Path root, Collection<Path> sources, String destFolderName, String userMail, String bundleName) {
+        listener.getLogger().printf("userMail %s%n", userMail);
+        File destFolder = findDestFolderInDrive(destFolderName, userMail);
+        if (destFolder != null) {
+            uploadBundle(root, sources, destFolder, bundleName);
         }
-        return Optional.empty();
+    }
+
+    @Override
+    protected Drive.Files.List createListRequest(final String query) throws IOException {
+        return drive.files().list()
+            .setQ(query);
     }
 
     @Override
@@ -61,26 +69,42 @@ class GoogleDriveManager extends ManagerBase {
     }
 
     @Override
-    protected DriveRequest<File> createUpdateFileRequest(final File existingFile, final File destFolder, final java.io.File source) throws IOException {
-        // Create new File content
-        String type = Files.probeContentType(source.toPath());
-        FileContent newContentInputStream = new FileContent(type, source);
-        File newContent = createNewFile(source.getName(), type);
+    protected Drive.Files.Create createFolderRequest(final File parentFolder, final String name, final String id) throws IOException {
+        return createFolderRequest(Collections.singletonList(parentFolder.getId()), name, id);
+    }
+
+    @Override
+    protected Drive.Files.Delete createDeleteRequest(final String fileId) throws IOException {
+        return drive.files().delete(fileId);
+    }
+
+    @Override
+    protected Drive.Files.Get createGetRequest(final String fileId) throws IOException {
+        return drive.files().get(fileId);
+    }
+
+    @Override
+    protected Drive.Files.Update createTrashRequest(final String fileId) throws IOException {
+        return drive.files().update(fileId, new File().setTrashed(true))
+            .setFields("id");
+    }
+
+    @Override
+    protected DriveRequest<File> createUpdateFileRequest(final File existingFile, final File destFolder, final String name,
+                                                         final AbstractInputStreamContent content) throws IOException {
+        File newContent = createNewFile(name, content.getType());
         // Update existing file with the new File content
         return drive.files()
-            .update(existingFile.getId(), newContent, newContentInputStream)
+            .update(existingFile.getId(), newContent, content)
             .setAddParents(destFolder.getId());
     }
 
     @Override
-    protected DriveRequest<File> createNewFileRequest(final File destFolder, final java.io.File source) throws IOException {
-        // Create new File content
-        String type = Files.probeContentType(source.toPath());
-        FileContent newContentInputStream = new FileContent(type, source);
-        File newContent = createNewFile(destFolder, source.getName(), type);
+    protected DriveRequest<File> createNewFileRequest(final File destFolder, final String name, final AbstractInputStreamContent content) throws IOException {
+        File newContent = createNewFile(destFolder, name, content.getType());
         // Create a new file with the new File content
         return drive.files()
-            .create(newContent, newContentInputStream);
+            .create(newContent, content);
     }
     
     private File createNewFile(File parentFolder, String name, String type) {
@@ -98,16 +122,23 @@ class GoogleDriveManager extends ManagerBase {
         return file;
     }
 
+    @Override
+    protected Optional<File> findFolderByPath(final String folderPath) {
+        String[] folders = folderPath.split("/");
+        Optional<File> folder = findDestFolderDrive(folders[0]);
+        for (int i = 1; i < folders.length && folder.isPresent(); i++) {
+            folder = findFolderInFolder(folder.get(), folders[i]);
+        }
+        return folder;
+    }
+
     private File findDestFolderInDrive(String destFolderName, String userMail) {
         String[] destinationFolders = destFolderName.split("/");
         File destFolder = controlParent(destinationFolders[0], userMail);
         // Find or create additional subdirs
         for (int i = 1; i < destinationFolders.length && destFolder != null; i++) {
             String subFolderName = destinationFolders[i];
-            File newParentFolder = destFolder;
-            destFolder = findFolderInFolder(newParentFolder, subFolderName)
-                .orElseGet(() -> createNewFolder(Collections.singletonList(newParentFolder.getName()), Collections.singletonList(newParentFolder.getId()),
-                    subFolderName));
+            destFolder = findOrCreateFolder(destFolder, subFolderName);
         }
         return destFolder;
     }
@@ -120,21 +151,29 @@ class GoogleDriveManager extends ManagerBase {
             if (destFolder.isPresent()){
                 return destFolder.get();
             }
-            File inserted = createNewFolder(Collections.singletonList("root"), Collections.emptyList(), destFolderName);
+            File inserted = createNewFolder(Collections.singletonList(ROOT_FOLDER), Collections.emptyList(), destFolderName);
+            if (inserted == null) {
+                return null;
+            }
+            folderCache.putNewFolder(ROOT_FOLDER, destFolderName, inserted);
+            if (getDryRunPlan() != null) {
+                listener.getLogger().printf("Would set write permissions to Folder %s for %s%n", destFolderName, userMail);
+                getDryRunPlan().batch(mails.length);
+                return inserted;
+            }
             
-            BatchRequest batch = drive.batch();
             JsonBatchCallback<Permission> callBack = getPermissionJsonBatchCallback(destFolderName);
-            for (String mail : mails) {
-                Permission userPermission = new Permission()
-                    //                    .setValue(mail)
-                    .setType("user")
-                    .setRole("writer")
-                    .setEmailAddress(mail);
-                drive.permissions().create(inserted.getId(), userPermission)
-                    .setFields("id")
-                    .queue(batch, callBack);
-            }
-            batch.execute();
+            executeBatch("setting permissions of " + destFolderName, batch -> {
+                for (String mail : mails) {
+                    Permission userPermission = new Permission()
+                        //                    .setValue(mail)
+                        .setType("user")
+                        .setRole("writer")
+                        .setEmailAddress(mail);
+                    batch.queue(drive.permissions().create(inserted.getId(), userPermission)
+                        .setFields("id"), callBack);
+                }
+            });
 
             return inserted;
         } catch (IOException e) {
@@ -158,22 +197,36 @@ class GoogleDriveManager extends ManagerBase {
     }
 
     private Optional<File> findDestFolderDrive(final String destFolderName) {
+        Optional<File> cachedFolder = folderCache.get(ROOT_FOLDER, destFolderName);
+        if (cachedFolder.isPresent()) {
+            return cachedFolder;
+        }
         listener.getLogger().printf("Searching for %s%n", destFolderName);
-        return findInFolderByQuery(String.format("mimeType='%s' and name='%s' and trashed=false",
-            GOOGLE_DRIVE_FOLDER_MIMETYPE, destFolderName));
+        Optional<File> destFolder = findInFolderByQuery(String.format("mimeType='%s' and name='%s' and trashed=false",
+            GOOGLE_DRIVE_FOLDER_MIMETYPE, escapeQueryValue(destFolderName)));
+        destFolder.ifPresent(found -> folderCache.put(ROOT_FOLDER, destFolderName, found));
+        return destFolder;
     }
     
-    private  File createNewFolder(final List<String> parentNames, final List<String> parentIds, final String name){
-        // Need to create the folder...
+    private Drive.Files.Create createFolderRequest(final List<String> parentIds, final String name, final String id) throws IOException {
         File fileMetadata = new File();
+        fileMetadata.setId(id);
         fileMetadata.setName(name);
         fileMetadata.setMimeType(GOOGLE_DRIVE_FOLDER_MIMETYPE);
         fileMetadata.setParents(parentIds);
+        return drive.files().create(fileMetadata)
+            .setSupportsTeamDrives(true)
+            .setFields(CREATED_FOLDER_FIELDS);
+    }
+
+    private  File createNewFolder(final List<String> parentNames, final List<String> parentIds, final String name){
+        if (getDryRunPlan() != null) {
+            return planNewFolder(Joiner.on(",").join(parentNames), Joiner.on(",").join(parentIds), name);
+        }
+        // Need to create the folder...
         try {
-            File newFolder = drive.files().create(fileMetadata)
-                .setSupportsTeamDrives(true)
-                .setFields("id, name, parents")
-                .execute();
+            File newFolder = requestExecutor.executeCreate("creating folder " + name, () -> createFolderRequest(parentIds, name, null).execute(),
+                () -> findCreatedFile(parentIds.isEmpty() ? "" : parentIds.get(0), name, true));
             listener.getLogger().printf("Created new Folder %s (%s) in %s (%s)%n",
                 newFolder.getName(), newFolder.getId(), Joiner.on(",").join(parentNames),  Joiner.on(",").join(parentIds));
             return newFolder;
@@ -182,34 +235,4 @@ class GoogleDriveManager extends ManagerBase {
         }
         return null;
     }
-
-    public void cleanup(final String type, final List<String> names) {
-        try {
-            String pageToken = null;
-            do {
-                FileList result = drive.files().list()
-                    .setPageToken(pageToken)
-                    .execute();
-                List<com.google.api.services.drive.model.File> files = result.getFiles();
-                for (com.google.api.services.drive.model.File file : files) {
-                    if (file.getMimeType().equals(type) && names.contains(file.getName()) ) {
-                        deleteFile(file);
-                    }
-                }
-                pageToken = result.getNextPageToken();
-            } while (pageToken != null);
-        } catch (IOException e) {
-            listener.error("Error cleaning up files", e);
-        }
-    }
-
-    private void deleteFile(final com.google.api.services.drive.model.File file) {
-        try {
-            listener.getLogger().printf("Deleting %s (%s)%n", file.getName(), file.getId());
-            drive.files().delete(file.getId()).execute();
-        } catch (IOException e) {
-            listener.error("Error deleting file", e);
-        }
-    }
-
 }
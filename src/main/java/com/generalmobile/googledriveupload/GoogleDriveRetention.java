@@ -0,0 +1,125 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.jenkins.plugins.credentials.domains.DomainRequirementProvider;
+import com.google.jenkins.plugins.credentials.domains.RequiresDomain;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.Serializable;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Prunes the folders of a Drive folder, keeping the last ones created or the ones newer than an age,
+ * from My Drive or a Shared Drive. Returns the number of removed folders.
+ */
+@RequiresDomain(value = DriveScopeRequirement.class)
+public final class GoogleDriveRetention extends Step implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String credentialsId;
+    private final String driveFolderName;
+    private int keepLast;
+    private int maxAgeDays;
+    private boolean trash = true;
+    private String sharedDriveName = "";
+    private String sharedDriveId = "";
+
+    @DataBoundConstructor
+    public GoogleDriveRetention(String credentialsId, String driveFolderName) {
+        this.credentialsId = checkNotNull(credentialsId);
+        this.driveFolderName = checkNotNull(driveFolderName);
+    }
+
+    @DataBoundSetter
+    public void setKeepLast(int keepLast) {
+        this.keepLast = Math.max(0, keepLast);
+    }
+
+    @DataBoundSetter
+    public void setMaxAgeDays(int maxAgeDays) {
+        this.maxAgeDays = Math.max(0, maxAgeDays);
+    }
+
+    @DataBoundSetter
+    public void setTrash(boolean trash) {
+        this.trash = trash;
+    }
+
+    @DataBoundSetter
+    public void setSharedDriveName(String sharedDriveName) {
+        this.sharedDriveName = checkNotNull(sharedDriveName);
+    }
+
+    @DataBoundSetter
+    public void setSharedDriveId(String sharedDriveId) {
+        this.sharedDriveId = checkNotNull(sharedDriveId);
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getDriveFolderName() {
+        return driveFolderName;
+    }
+
+    public int getKeepLast() {
+        return keepLast;
+    }
+
+    public int getMaxAgeDays() {
+        return maxAgeDays;
+    }
+
+    public boolean isTrash() {
+        return trash;
+    }
+
+    public String getSharedDriveName() {
+        return sharedDriveName;
+    }
+
+    public String getSharedDriveId() {
+        return sharedDriveId;
+    }
+
+    DriveScopeRequirement getRequirement() {
+        return DomainRequirementProvider.of(getClass(), DriveScopeRequirement.class);
+    }
+
+    @Override
+    public StepExecution start(StepContext stepContext) throws Exception {
+        return new GoogleDriveRetentionExecution(this, stepContext);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        public DescriptorImpl() {}
+
+        @Override
+        public String getDisplayName() {
+            return "Google Drive Retention";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(TaskListener.class, Run.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "googleDriveRetention";
+        }
+    }
+}
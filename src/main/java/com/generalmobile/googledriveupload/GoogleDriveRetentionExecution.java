@@ -0,0 +1,65 @@
+package com.generalmobile.googledriveupload;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.google.api.services.drive.Drive;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import hudson.AbortException;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Runs the retention on the controller, it only talks to Drive and needs no workspace.
+ */
+public class GoogleDriveRetentionExecution extends SynchronousNonBlockingStepExecution<Integer> {
+    private static final long serialVersionUID = 1L;
+
+    private final GoogleDriveRetention step;
+
+    protected GoogleDriveRetentionExecution(@Nonnull GoogleDriveRetention step, @Nonnull StepContext context) {
+        super(context);
+
+        this.step = step;
+    }
+
+    @Override
+    protected Integer run() throws Exception {
+        TaskListener listener = getContext().get(TaskListener.class);
+        assert listener != null;
+        Run<?, ?> run = getContext().get(Run.class);
+        assert run != null;
+
+        GoogleRobotCredentials credentials = CredentialsProvider.findCredentialById(step.getCredentialsId(), GoogleRobotCredentials.class, run);
+        if (credentials == null) {
+            throw new AbortException("Could not find the Google credentials " + step.getCredentialsId());
+        }
+        RetentionPolicy policy = new RetentionPolicy(step.getKeepLast(), step.getMaxAgeDays(), step.isTrash());
+        if (!policy.isEnabled()) {
+            throw new AbortException("Set keepLast or maxAgeDays to say which folders to keep");
+        }
+        String driveFolderName = run.getEnvironment(listener).expand(step.getDriveFolderName());
+        try (DriveServiceFactory.Lease lease = DriveServiceFactory.lease(credentials, step.getRequirement(), GoogleDriveUploadConfiguration.getTransportSettings())) {
+            Drive drive = lease.getDrive();
+            if (step.getSharedDriveName().isEmpty() && step.getSharedDriveId().isEmpty()) {
+                try (GoogleDriveManager driveManager = new GoogleDriveManager(drive, listener)) {
+                    return driveManager.applyRetention(driveFolderName, policy);
+                }
+            }
+            SharedDriveCache.Resolution sharedDrive = SharedDriveCache.resolve(step.getCredentialsId(), step.getSharedDriveId(), step.getSharedDriveName());
+            try {
+                String sharedDriveId = sharedDrive.getSharedDriveId().isEmpty()
+                    ? sharedDrive.resolved(SharedDriveManager.findSharedDriveId(drive, step.getSharedDriveName(), listener))
+                    : sharedDrive.getSharedDriveId();
+                try (SharedDriveManager driveManager = new SharedDriveManager(drive, sharedDriveId, step.getSharedDriveName(), listener)) {
+                    return driveManager.applyRetention(driveFolderName, policy);
+                }
+            } catch (Exception e) {
+                sharedDrive.failed();
+                throw e;
+            }
+        }
+    }
+}
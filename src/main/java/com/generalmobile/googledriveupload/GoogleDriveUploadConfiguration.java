@@ -0,0 +1,121 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global settings of the HTTP transport used to talk to Google Drive and of the upload scheduler.
+ */
+@Extension
+public class GoogleDriveUploadConfiguration extends GlobalConfiguration {
+    static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 4;
+
+    private TransportSettings.TransportType transportType = TransportSettings.TransportType.NET_HTTP;
+    private int maxConnectionsPerRoute = TransportSettings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int httpClientBufferSize;
+    private int connectTimeout = TransportSettings.DEFAULT_TIMEOUT_SECONDS;
+    private int readTimeout = TransportSettings.DEFAULT_TIMEOUT_SECONDS;
+    private int requestsPerSecond = TransportSettings.DEFAULT_REQUESTS_PER_SECOND;
+    private int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+
+    public GoogleDriveUploadConfiguration() {
+        load();
+    }
+
+    static GoogleDriveUploadConfiguration get() {
+        return GlobalConfiguration.all().get(GoogleDriveUploadConfiguration.class);
+    }
+
+    /**
+     * @return the settings of the global configuration, the defaults when it is not available
+     */
+    static TransportSettings getTransportSettings() {
+        GoogleDriveUploadConfiguration configuration = get();
+        if (configuration == null) {
+            return TransportSettings.defaults();
+        }
+        return new TransportSettings(configuration.transportType, configuration.maxConnectionsPerRoute,
+            configuration.httpClientBufferSize, configuration.connectTimeout, configuration.readTimeout, configuration.requestsPerSecond);
+    }
+
+    /**
+     * @return the upload slots of a credentials, the default when the configuration is not available
+     */
+    static int getMaxConcurrentUploadsSetting() {
+        GoogleDriveUploadConfiguration configuration = get();
+        return configuration == null ? DEFAULT_MAX_CONCURRENT_UPLOADS : configuration.maxConcurrentUploads;
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+
+    public TransportSettings.TransportType getTransportType() {
+        return transportType;
+    }
+
+    @DataBoundSetter
+    public void setTransportType(TransportSettings.TransportType transportType) {
+        this.transportType = transportType == null ? TransportSettings.TransportType.NET_HTTP : transportType;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = Math.max(1, maxConnectionsPerRoute);
+    }
+
+    public int getHttpClientBufferSize() {
+        return httpClientBufferSize;
+    }
+
+    @DataBoundSetter
+    public void setHttpClientBufferSize(int httpClientBufferSize) {
+        this.httpClientBufferSize = Math.max(0, httpClientBufferSize);
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @DataBoundSetter
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = Math.max(0, readTimeout);
+    }
+
+    public int getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setRequestsPerSecond(int requestsPerSecond) {
+        this.requestsPerSecond = Math.max(0, requestsPerSecond);
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = Math.max(0, maxConcurrentUploads);
+    }
+}
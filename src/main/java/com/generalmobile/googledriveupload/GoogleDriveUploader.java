@@ -14,17 +14,35 @@ import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import java.io.Serializable;
 import java.util.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 @RequiresDomain(value = DriveScopeRequirement.class)
-public final class GoogleDriveUploader extends Step {
+public final class GoogleDriveUploader extends Step implements Serializable {
+    // Kept by the execution, so a resumed pipeline can run the upload again
+    private static final long serialVersionUID = 1L;
+
     private final String credentialsId;
     private final String driveFolderName;
     private final String uploadFolder;
     private String sharedDriveName = "";
+    private String sharedDriveId = "";
+    private String additionalCredentialsIds = "";
+    private String bundle = "";
+    private String excludes = "";
     private String userMail = "";
+    private int parallelism = 1;
+    private boolean skipUnchanged;
+    private boolean dryRun;
+    private boolean sync;
+    private boolean keepPaths;
+    private int retainLast;
+    private int retainDays;
+    private int minChunkSize = AdaptiveChunkSizer.DEFAULT_MIN_CHUNK_SIZE_KB;
+    private int maxChunkSize = AdaptiveChunkSizer.DEFAULT_MAX_CHUNK_SIZE_KB;
+    private int directUploadThreshold = ManagerBase.DEFAULT_DIRECT_UPLOAD_THRESHOLD_KB;
 
     @DataBoundConstructor
     public GoogleDriveUploader(String credentialsId, String driveFolderName, String uploadFolder, String userMail) {
@@ -43,6 +61,76 @@ public final class GoogleDriveUploader extends Step {
         this.sharedDriveName = checkNotNull(sharedDriveName);
     }
 
+    @DataBoundSetter
+    public void setSharedDriveId(String sharedDriveId) {
+        this.sharedDriveId = checkNotNull(sharedDriveId);
+    }
+
+    @DataBoundSetter
+    public void setAdditionalCredentialsIds(String additionalCredentialsIds) {
+        this.additionalCredentialsIds = checkNotNull(additionalCredentialsIds);
+    }
+
+    @DataBoundSetter
+    public void setExcludes(String excludes) {
+        this.excludes = checkNotNull(excludes);
+    }
+
+    @DataBoundSetter
+    public void setBundle(String bundle) {
+        this.bundle = checkNotNull(bundle).trim();
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    @DataBoundSetter
+    public void setKeepPaths(boolean keepPaths) {
+        this.keepPaths = keepPaths;
+    }
+
+    @DataBoundSetter
+    public void setRetainLast(int retainLast) {
+        this.retainLast = Math.max(0, retainLast);
+    }
+
+    @DataBoundSetter
+    public void setRetainDays(int retainDays) {
+        this.retainDays = Math.max(0, retainDays);
+    }
+
+    @DataBoundSetter
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    @DataBoundSetter
+    public void setMinChunkSize(int minChunkSize) {
+        this.minChunkSize = Math.max(AdaptiveChunkSizer.DEFAULT_MIN_CHUNK_SIZE_KB, minChunkSize);
+    }
+
+    @DataBoundSetter
+    public void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = Math.max(AdaptiveChunkSizer.DEFAULT_MIN_CHUNK_SIZE_KB, maxChunkSize);
+    }
+
+    @DataBoundSetter
+    public void setDirectUploadThreshold(int directUploadThreshold) {
+        this.directUploadThreshold = Math.max(0, directUploadThreshold);
+    }
+
     public FormValidation doCheckUserMail(@QueryParameter String value) {
         return FormValidation.error("Not a number");
            /* int at =StringUtils.countOccurrencesOf(value,"@");
@@ -63,6 +151,35 @@ public final class GoogleDriveUploader extends Step {
         return sharedDriveName;
     }
 
+    public String getSharedDriveId() {
+        return sharedDriveId;
+    }
+
+    public String getAdditionalCredentialsIds() {
+        return additionalCredentialsIds;
+    }
+
+    /**
+     * @return the additional credentials ids, without blanks
+     */
+    List<String> getAdditionalCredentialsIdList() {
+        List<String> ids = new ArrayList<>();
+        for (String id : additionalCredentialsIds.split("\\s*,\\s*")) {
+            if (!id.trim().isEmpty() && !id.trim().equals(credentialsId)) {
+                ids.add(id.trim());
+            }
+        }
+        return ids;
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    public String getBundle() {
+        return bundle;
+    }
+
     public String getUploadFolder() {
         return uploadFolder;
     }
@@ -75,6 +192,46 @@ public final class GoogleDriveUploader extends Step {
         return driveFolderName;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    public boolean isKeepPaths() {
+        return keepPaths;
+    }
+
+    public int getRetainLast() {
+        return retainLast;
+    }
+
+    public int getRetainDays() {
+        return retainDays;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public int getDirectUploadThreshold() {
+        return directUploadThreshold;
+    }
+
     DriveScopeRequirement getRequirement() {
         return DomainRequirementProvider.of(getClass(), DriveScopeRequirement.class);
     }
@@ -1,38 +1,37 @@
 package com.generalmobile.googledriveupload;
 
 import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.services.drive.Drive;
 import com.google.jenkins.plugins.credentials.domains.DomainRequirementProvider;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 import hudson.EnvVars;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
+import hudson.slaves.WorkspaceList;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.SystemUtils;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
 import org.jenkinsci.remoting.RoleChecker;
 
 import javax.annotation.Nonnull;
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.security.GeneralSecurityException;
-import java.util.EnumSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class GoogleDriveUploaderExecution extends SynchronousNonBlockingStepExecution<Void> {
     private static final long serialVersionUID = 1L;
 
-    public static final String APPLICATION_NAME = "Jenkins drive uploader";
-    private transient GoogleDriveUploader step;
+    public static final String APPLICATION_NAME = DriveServiceFactory.APPLICATION_NAME;
+    private final GoogleDriveUploader step;
 
     protected GoogleDriveUploaderExecution(@Nonnull GoogleDriveUploader step, @Nonnull StepContext context) {
         super(context);
@@ -49,103 +48,267 @@ public class GoogleDriveUploaderExecution extends SynchronousNonBlockingStepExec
         Run<?, ?> run = getContext().get(Run.class);
         assert run != null;
 
+        FilePath tempDir = WorkspaceList.tempDir(ws);
+        String journalFile = tempDir == null ? null : tempDir.child(getStateFileName(UploadJournal.FILE_NAME, step.getCredentialsId(),
+            step.getSharedDriveName(), step.getSharedDriveId(), step.getDriveFolderName())).getRemote();
+        String sessionFile = tempDir == null ? null : tempDir.child(getStateFileName(UploadSessionStore.FILE_NAME, step.getCredentialsId(),
+            step.getSharedDriveName(), step.getSharedDriveId(), step.getDriveFolderName())).getRemote();
+        // A shared drive id given by the step wins, otherwise the id resolved by an earlier build is reused
+        SharedDriveCache.Resolution sharedDrive = SharedDriveCache.resolve(step.getCredentialsId(), step.getSharedDriveId(), step.getSharedDriveName());
+        List<GoogleRobotCredentials> credentials = getAuthorizeCredentials(listener, run);
+        if (step.isSync() && !step.getBundle().isEmpty()) {
+            listener.getLogger().println("Sync does not apply to a bundle, nothing is trashed");
+        }
+        // Waits in line behind the other uploads with these credentials, outside the try so an abort while waiting aborts the step
+        UploadScheduler.Slot slot = UploadScheduler.get().acquire(step.getCredentialsId(), run.getFullDisplayName(),
+            GoogleDriveUploadConfiguration.getMaxConcurrentUploadsSetting(),
+            GoogleDriveUploadConfiguration.getTransportSettings().getRequestsPerSecond() * credentials.size(), listener);
         try {
-            ws.act(new PerformUpload(Paths.get(ws.getRemote()),
-                    getAuthorizeCredentials(listener, run),
+            // The agent asks the slot for its current share of the request rate
+            RequestShare requestShare = ws.getChannel().export(RequestShare.class, slot);
+            String resolvedSharedDriveId = ws.act(new PerformUpload(Paths.get(ws.getRemote()),
+                    credentials,
                     listener, run.getEnvironment(listener),
                     step.getUploadFolder(),
                     step.getDriveFolderName(),
                     step.getSharedDriveName(),
-                    step.getUserMail()));
+                    sharedDrive.getSharedDriveId(),
+                    step.getUserMail(),
+                    new UploadOptions(step, journalFile, sessionFile, requestShare)));
+            sharedDrive.resolved(resolvedSharedDriveId);
         } catch (Exception e) {
+            sharedDrive.failed();
             e.printStackTrace(listener.getLogger());
             run.setResult(Result.FAILURE);
+        } finally {
+            slot.close();
         }
 
         return null;
     }
 
+    /**
+     * @return the name of a state file kept in the workspace temp directory, one per destination, so steps uploading
+     * elsewhere from the same workspace, like parallel branches, do not overwrite each other's journal or sessions
+     */
+    static String getStateFileName(final String fileName, final String credentialsId, final String sharedDriveName,
+                                   final String sharedDriveId, final String driveFolderName) {
+        String destination = String.join("\n", credentialsId, sharedDriveName, sharedDriveId, driveFolderName);
+        int extension = fileName.lastIndexOf('.');
+        return fileName.substring(0, extension) + "-" + Util.getDigestOf(destination).substring(0, 16) + fileName.substring(extension);
+    }
+
+    /**
+     * Runs the upload again after a restart, files whose resumable session is still known to the agent
+     * continue from the last byte Drive confirmed, unchanged files are skipped as usual.
+     */
+    @Override
+    public void onResume() {
+        try {
+            start();
+        } catch (Exception e) {
+            getContext().onFailure(e);
+        }
+    }
+
     static protected Set<Path> getUploadFiles(@Nonnull final Path rootPath, @Nonnull String uploadFolderPatterns, @Nonnull final EnvVars env) throws IOException {
+        return getUploadFiles(rootPath, uploadFolderPatterns, "", env);
+    }
+
+    static protected Set<Path> getUploadFiles(@Nonnull final Path rootPath, @Nonnull String uploadFolderPatterns, @Nonnull String excludePatterns,
+                                              @Nonnull final EnvVars env) throws IOException {
         Set<Path> uploadFilePaths = new HashSet<Path>();
         if (!uploadFolderPatterns.isEmpty()) {
-            String[] uploadFilePatterns = env.expand(uploadFolderPatterns).split("\\s*,\\s*");
-            for (String uploadFilePattern : uploadFilePatterns) {
-
-                //Hack to fix unit tests on Windows
-                String pathMatcherPattern = "glob:" + rootPath.toString() + File.separator + uploadFilePattern;
-                if (SystemUtils.IS_OS_WINDOWS) pathMatcherPattern = pathMatcherPattern.replace("\\", "\\\\");
-                PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher(pathMatcherPattern);
-                Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-                        if (pathMatcher.matches(dir)) {
-                            uploadFilePaths.add(dir);
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
-
-                    @Override
-                    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
-                        if (pathMatcher.matches(path)) {
-                            uploadFilePaths.add(path);
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
-            }
+            uploadFilePaths.addAll(createWalker(rootPath, uploadFolderPatterns, excludePatterns, env).walk());
         } else {
             uploadFilePaths.add(rootPath);
         }
         return uploadFilePaths;
     }
 
-    private GoogleRobotCredentials getAuthorizeCredentials(TaskListener listener, Run<?, ?> build) throws GeneralSecurityException {
-        return CredentialsProvider.findCredentialById(step.getCredentialsId(), GoogleRobotCredentials.class, build)
-                .forRemote(step.getRequirement());
+    /**
+     * Hands every path to upload to the stage as soon as the walk finds it, see {@link UploadPipeline}.
+     */
+    static void forEachUploadPath(@Nonnull final Path rootPath, @Nonnull String uploadFolderPatterns, @Nonnull String excludePatterns,
+                                  @Nonnull final EnvVars env, @Nonnull UploadPipeline.UploadStage stage) throws Exception {
+        if (!uploadFolderPatterns.isEmpty()) {
+            new UploadPipeline(createWalker(rootPath, uploadFolderPatterns, excludePatterns, env)).run(stage);
+        } else {
+            stage.accept(rootPath);
+        }
+    }
+
+    /**
+     * @return the directories from the workspace down to a matched file or directory, the same for both
+     */
+    static List<String> getSubFolders(@Nonnull final Path rootPath, @Nonnull final Path uploadPath) {
+        List<String> subFolders = new ArrayList<>();
+        if (uploadPath.startsWith(rootPath)) {
+            Path relativeDir = rootPath.relativize(uploadPath).getParent();
+            if (relativeDir != null) {
+                for (Path name : relativeDir) {
+                    subFolders.add(name.toString());
+                }
+            }
+        }
+        return subFolders;
+    }
+
+    private static UploadFileWalker createWalker(final Path rootPath, final String uploadFolderPatterns, final String excludePatterns, final EnvVars env) {
+        String[] uploadFilePatterns = env.expand(uploadFolderPatterns).split("\\s*,\\s*");
+        return new UploadFileWalker(rootPath, Arrays.asList(uploadFilePatterns), UploadExcludes.split(excludePatterns, env));
+    }
+
+    /**
+     * @return the credentials of the step, followed by the additional credentials when uploading to a shared drive
+     */
+    private List<GoogleRobotCredentials> getAuthorizeCredentials(TaskListener listener, Run<?, ?> build) throws GeneralSecurityException {
+        List<GoogleRobotCredentials> credentials = new ArrayList<>();
+        credentials.add(CredentialsProvider.findCredentialById(step.getCredentialsId(), GoogleRobotCredentials.class, build)
+                .forRemote(step.getRequirement()));
+        List<String> additionalIds = step.getAdditionalCredentialsIdList();
+        if (additionalIds.isEmpty()) {
+            return credentials;
+        }
+        if (step.getSharedDriveName().isEmpty() && step.getSharedDriveId().isEmpty()) {
+            // In My Drive every account would upload into its own folders
+            listener.getLogger().println("Additional credentials are only used with a shared drive, ignoring them");
+            return credentials;
+        }
+        for (String additionalId : additionalIds) {
+            GoogleRobotCredentials additional = CredentialsProvider.findCredentialById(additionalId, GoogleRobotCredentials.class, build);
+            if (additional == null) {
+                listener.error("Credentials " + additionalId + " not found, uploading without them");
+            } else {
+                credentials.add(additional.forRemote(step.getRequirement()));
+            }
+        }
+        listener.getLogger().printf("Spreading requests over %d credentials%n", credentials.size());
+        return credentials;
     }
 
-    public static final class PerformUpload implements Callable<Void, Exception> {
+    /**
+     * Uploads on the agent.
+     * Returns the id of the shared drive that was uploaded to, or null for My Drive.
+     */
+    public static final class PerformUpload implements Callable<String, Exception> {
 
         private final String sharedDriveName;
-        private final GoogleRobotCredentials credentials;
+        private final String sharedDriveId;
+        private final List<GoogleRobotCredentials> credentials;
         private final TaskListener listener;
         private final String driveFolderName;
         private final String filePath;
         private final EnvVars envVars;
         private final String uploadFolder;
         private final String userEmail;
+        private final UploadOptions options;
 
-        public PerformUpload(@Nonnull Path filePath, @Nonnull final GoogleRobotCredentials credentials, @Nonnull final TaskListener listener, @Nonnull final EnvVars envVars, @Nonnull final String uploadFolder, final String driveFolderName, final String sharedDriveName, final String userEmail) {
+        public PerformUpload(@Nonnull Path filePath, @Nonnull final List<GoogleRobotCredentials> credentials, @Nonnull final TaskListener listener, @Nonnull final EnvVars envVars, @Nonnull final String uploadFolder, final String driveFolderName, final String sharedDriveName, final String sharedDriveId, final String userEmail, @Nonnull final UploadOptions options) {
             this.credentials = credentials;
             this.listener = listener;
             this.sharedDriveName = sharedDriveName;
+            this.sharedDriveId = sharedDriveId;
             this.driveFolderName = driveFolderName;
             this.filePath = filePath.toString();
             this.envVars = envVars;
             this.uploadFolder = uploadFolder;
             this.userEmail = userEmail;
+            this.options = options;
         }
 
         @Override
-        public Void call() throws Exception {
+        public String call() throws Exception {
+            UploadJournal journal = options.isSkipUnchanged() && options.getJournalFile() != null
+                ? UploadJournal.load(Paths.get(options.getJournalFile())) : null;
+            UploadSessionStore sessionStore = options.getSessionFile() != null
+                ? UploadSessionStore.load(Paths.get(options.getSessionFile())) : null;
             try {
-                Set<Path> uploadPaths = getUploadFiles(Paths.get(filePath), uploadFolder, envVars);
-                if (sharedDriveName.isEmpty()) {
-                    GoogleDriveManager driveManager = new GoogleDriveManager(getDriveService(credentials), listener);
-                    for (Path uploadFilePath : uploadPaths) {
-                        driveManager.uploadFolder(uploadFilePath.toFile(), driveFolderName, userEmail);
+                Path rootPath = Paths.get(filePath);
+                if (sharedDriveName.isEmpty() && sharedDriveId.isEmpty()) {
+                    try (DriveServiceFactory.Lease lease = leaseDriveService(credentials);
+                         GoogleDriveManager driveManager = new GoogleDriveManager(lease.getDrive(), listener)) {
+                        options.applyTo(driveManager, journal, sessionStore, rootPath, envVars);
+                        if (!options.getBundle().isEmpty()) {
+                            driveManager.uploadBundle(rootPath, getUploadFiles(rootPath, uploadFolder, options.getExcludes(), envVars),
+                                driveFolderName, userEmail, options.getBundle());
+                        } else {
+                            try {
+                                forEachUploadPath(rootPath, uploadFolder, options.getExcludes(), envVars,
+                                    uploadFilePath -> driveManager.submitFolder(uploadFilePath.toFile(), driveFolderName, userEmail,
+                                        getDestSubFolders(rootPath, uploadFilePath)));
+                            } finally {
+                                driveManager.awaitUploads();
+                            }
+                            if (options.isSync()) {
+                                driveManager.trashRemoteOnly();
+                            }
+                        }
+                        applyRetention(driveManager);
+                        driveManager.logSummary();
                     }
                 } else {
-                    SharedDriveManager driveManager = new SharedDriveManager(getDriveService(credentials), sharedDriveName, listener);
-                    for (Path uploadFilePath : uploadPaths) {
-                        driveManager.uploadFolderToSharedDrive(uploadFilePath.toFile(), driveFolderName);
+                    try (DriveServiceFactory.Lease lease = leaseDriveService(credentials);
+                         SharedDriveManager driveManager = sharedDriveId.isEmpty()
+                            ? new SharedDriveManager(lease.getDrive(), sharedDriveName, listener)
+                            : new SharedDriveManager(lease.getDrive(), sharedDriveId, sharedDriveName, listener)) {
+                        options.applyTo(driveManager, journal, sessionStore, rootPath, envVars);
+                        if (!options.getBundle().isEmpty()) {
+                            driveManager.uploadBundleToSharedDrive(rootPath, getUploadFiles(rootPath, uploadFolder, options.getExcludes(), envVars),
+                                driveFolderName, options.getBundle());
+                        } else {
+                            try {
+                                forEachUploadPath(rootPath, uploadFolder, options.getExcludes(), envVars,
+                                    uploadFilePath -> driveManager.submitFolderToSharedDrive(uploadFilePath.toFile(), driveFolderName,
+                                        getDestSubFolders(rootPath, uploadFilePath)));
+                            } finally {
+                                driveManager.awaitUploads();
+                            }
+                            if (options.isSync()) {
+                                driveManager.trashRemoteOnly();
+                            }
+                        }
+                        applyRetention(driveManager);
+                        driveManager.logSummary();
+                        return driveManager.getSharedDriveId();
                     }
                 }
             } catch (Exception e) {
                 listener.error("Inner error : " + e.getMessage() != null ? e.getMessage() : " empty?");
                 throw e;
+            } finally {
+                saveJournal(journal);
             }
 
-            return (Void) null;
+            return null;
+        }
+
+        /**
+         * @return the sub folders of the Drive folder a matched path goes to, none unless the workspace paths are kept
+         */
+        private List<String> getDestSubFolders(final Path rootPath, final Path uploadPath) {
+            return options.isKeepPaths() ? getSubFolders(rootPath, uploadPath) : Collections.emptyList();
+        }
+
+        /**
+         * Prunes the folders next to the Drive folder, like the builds of builds/${BUILD_NUMBER}.
+         */
+        private void applyRetention(final ManagerBase driveManager) {
+            RetentionPolicy retention = options.getRetention();
+            if (retention == null) {
+                return;
+            }
+            driveManager.applyRetentionAfterUpload(driveFolderName, retention);
+        }
+
+        private void saveJournal(final UploadJournal journal) {
+            if (journal != null) {
+                try {
+                    journal.save();
+                } catch (IOException e) {
+                    listener.error("Error saving upload journal " + options.getJournalFile() + " : " + e.getMessage());
+                }
+            }
         }
 
         @Override
@@ -154,11 +317,9 @@ public class GoogleDriveUploaderExecution extends SynchronousNonBlockingStepExec
             // the callable exists only in this method context.
         }
 
-        private Drive getDriveService(GoogleRobotCredentials credentials) throws GeneralSecurityException, IOException {
+        private DriveServiceFactory.Lease leaseDriveService(List<GoogleRobotCredentials> credentials) throws GeneralSecurityException, IOException {
             DriveScopeRequirement req = DomainRequirementProvider.of(getClass(), DriveScopeRequirement.class);
-            return new Drive.Builder(GoogleNetHttpTransport.newTrustedTransport(), new JacksonFactory(), credentials.getGoogleCredential(req))
-                    .setApplicationName(APPLICATION_NAME)
-                    .build();
+            return DriveServiceFactory.lease(credentials, req, options.getTransportSettings());
         }
     }
 }
@@ -6,101 +6,1265 @@
 
 package com.generalmobile.googledriveupload;
 
-import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.util.Sleeper;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveRequest;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Util;
 import hudson.model.TaskListener;
+import hudson.util.io.ArchiverFactory;
+import org.apache.commons.io.input.CountingInputStream;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public abstract class ManagerBase {
+public abstract class ManagerBase implements Closeable {
     public static final String GOOGLE_DRIVE_FOLDER_MIMETYPE = "application/vnd.google-apps.folder";
-    private static final int MB = 0x100000;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final String FOLDER_CONTENT_FIELDS = "nextPageToken, files(id, name, mimeType, md5Checksum, size)";
+    private static final String FOUND_FILE_FIELDS = "nextPageToken, files(id, name, mimeType)";
+    static final int DEFAULT_DIRECT_UPLOAD_THRESHOLD_KB = 5 * 1024;
+    // Lets the compression run ahead of the network while a chunk is sent
+    private static final int BUNDLE_PIPE_SIZE = 1024 * 1024;
+    private static final String UPLOADED_FILE_FIELDS = "id, name, mimeType, md5Checksum, size";
+    protected static final String CREATED_FOLDER_FIELDS = "id, name, parents";
+    private static final int STATUS_NOT_FOUND = 404;
+    private static final int STATUS_CONFLICT = 409;
+    private static final int MAX_GENERATED_IDS = 1000;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final int MAX_NAMES_PER_QUERY = 50;
+    private static final String CLEANUP_FIELDS = "nextPageToken, files(id, name, mimeType)";
+    private static final String SUBTREE_FIELDS = "nextPageToken, files(id, name, mimeType, md5Checksum, size, parents)";
+    private static final String JOURNAL_CHECK_FIELDS = "id, trashed, parents";
+    private static final String RETENTION_FIELDS = "nextPageToken, files(id, name, createdTime)";
     
     protected final Drive drive;
     protected final TaskListener listener;
+    protected final UploadStatistics statistics = new UploadStatistics();
+    protected final FolderCache folderCache = new FolderCache();
+    protected final DriveRequestExecutor requestExecutor;
+    private UploadExecutor uploadExecutor = new UploadExecutor(1);
+    private boolean skipUnchanged;
+    private UploadJournal uploadJournal;
+    private UploadSessionStore uploadSessionStore;
+    private DryRunPlan dryRunPlan;
+    private boolean sync;
+    private UploadExcludes excludes = UploadExcludes.NONE;
+    // Per mirrored folder id, the names the upload put in it
+    private final Map<String, Set<String>> mirroredNames = new ConcurrentHashMap<>();
+    // Per folder id listed for the sync, everything that was in it, duplicate names included
+    private final Map<String, List<File>> remoteEntries = new ConcurrentHashMap<>();
+    private long directUploadThreshold = DEFAULT_DIRECT_UPLOAD_THRESHOLD_KB * AdaptiveChunkSizer.KB;
+    private AdaptiveChunkSizer chunkSizer = new AdaptiveChunkSizer(AdaptiveChunkSizer.DEFAULT_MIN_CHUNK_SIZE_KB, AdaptiveChunkSizer.DEFAULT_MAX_CHUNK_SIZE_KB);
 
-    protected abstract Optional<File> findInFolderByQuery(final String query);
+    protected abstract Drive.Files.List createListRequest(final String query) throws IOException;
     protected abstract File createNewFolder(final File destFolder, final String name);
-    protected abstract DriveRequest<File> createNewFileRequest(final File destFolder, final java.io.File source) throws IOException;
-    protected abstract DriveRequest<File> createUpdateFileRequest(final File existingFile, final File destFolder, final java.io.File source) throws IOException;
+    protected abstract Drive.Files.Create createFolderRequest(final File parentFolder, final String name, final String id) throws IOException;
+    protected abstract Drive.Files.Delete createDeleteRequest(final String fileId) throws IOException;
+    protected abstract Drive.Files.Update createTrashRequest(final String fileId) throws IOException;
+    protected abstract Drive.Files.Get createGetRequest(final String fileId) throws IOException;
+    protected abstract Optional<File> findFolderByPath(final String folderPath);
+    protected abstract DriveRequest<File> createNewFileRequest(final File destFolder, final String name, final AbstractInputStreamContent content) throws IOException;
+    protected abstract DriveRequest<File> createUpdateFileRequest(final File existingFile, final File destFolder, final String name,
+                                                                  final AbstractInputStreamContent content) throws IOException;
+
+    protected DriveRequest<File> createNewFileRequest(final File destFolder, final java.io.File source) throws IOException {
+        return createNewFileRequest(destFolder, source.getName(), new FileContent(Files.probeContentType(source.toPath()), source));
+    }
+
+    protected DriveRequest<File> createUpdateFileRequest(final File existingFile, final File destFolder, final java.io.File source) throws IOException {
+        return createUpdateFileRequest(existingFile, destFolder, source.getName(), new FileContent(Files.probeContentType(source.toPath()), source));
+    }
     
     ManagerBase(final Drive driveService, final TaskListener listener) {
         this.drive = driveService;
         this.listener = listener;
+        this.requestExecutor = new DriveRequestExecutor(listener, statistics);
     }
-    
-    @SuppressFBWarnings
+
+    /**
+     * Sets the number of files uploaded at the same time, 1 uploads the files one by one.
+     */
+    void setParallelism(final int parallelism) {
+        uploadExecutor.close();
+        uploadExecutor = new UploadExecutor(Math.max(1, parallelism));
+    }
+
+    /**
+     * When set, existing files whose size and MD5 checksum match the local file are not uploaded again.
+     */
+    void setSkipUnchanged(final boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Journal of earlier uploads, only used when unchanged files are skipped.
+     * Files that did not change since their journaled upload are skipped without hashing or listing.
+     */
+    void setUploadJournal(final UploadJournal uploadJournal) {
+        this.uploadJournal = uploadJournal;
+    }
+
+    /**
+     * Store of the resumable sessions in flight, lets a restarted upload continue from the last confirmed byte.
+     * Without a store every resumable upload starts from the first byte.
+     */
+    void setUploadSessionStore(final UploadSessionStore uploadSessionStore) {
+        this.uploadSessionStore = uploadSessionStore;
+    }
+
+    /**
+     * Bounds, in KB, of the chunk size of resumable uploads. The chunk size adapts to the measured throughput
+     * within these bounds, equal bounds give a fixed chunk size.
+     */
+    void setChunkSizeBounds(final int minChunkSizeKb, final int maxChunkSizeKb) {
+        chunkSizer = new AdaptiveChunkSizer(minChunkSizeKb, maxChunkSizeKb);
+    }
+
+    /**
+     * Files smaller than this many KB are sent in a single multipart request instead of a resumable session,
+     * 0 uploads every file through a resumable session.
+     */
+    void setDirectUploadThreshold(final int directUploadThresholdKb) {
+        this.directUploadThreshold = Math.max(0, directUploadThresholdKb) * (long) AdaptiveChunkSizer.KB;
+    }
+
+    /**
+     * The requests per second this step may send, null to not limit them beyond the limit of the Drive client.
+     */
+    void setRequestShare(final RequestShare share) {
+        requestExecutor.setShare(share);
+    }
+
+    /**
+     * How the retries of rate limited or failed Drive calls wait, tests do not want to wait at all.
+     */
+    void setRetrySleeper(final Sleeper sleeper) {
+        requestExecutor.setSleeper(sleeper);
+    }
+
+    /**
+     * When set, folders and files are only looked up: what would be created, updated or skipped is logged
+     * and summed up in a {@link DryRunPlan}, nothing is written to Drive, to the journal or to the session store.
+     */
+    void setDryRun(final boolean dryRun) {
+        this.dryRunPlan = dryRun ? new DryRunPlan() : null;
+    }
+
+    /**
+     * When set, the destination folders mirror the upload: the subtree of a destination is listed once up front,
+     * and {@link #trashRemoteOnly()} trashes what the upload did not put there.
+     * Combine with {@link #setSkipUnchanged(boolean)} to upload only what is new or changed.
+     */
+    void setSync(final boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * The files and directories to leave out when uploading a directory or bundling files, with all they contain.
+     */
+    void setExcludes(final UploadExcludes excludes) {
+        this.excludes = excludes;
+    }
+
+    /**
+     * @return the plan of the dry run, or null when uploading for real
+     */
+    protected DryRunPlan getDryRunPlan() {
+        return dryRunPlan;
+    }
+
+    /**
+     * Plans a folder a dry run would create.
+     * @return the placeholder of the folder
+     */
+    protected File planNewFolder(final String parentName, final String parentId, final String name) {
+        File plannedFolder = dryRunPlan.createFolders(Collections.singletonList(name)).get(0);
+        listener.getLogger().printf("Would create Folder %s (%s) in %s (%s)%n", name, plannedFolder.getId(), parentName, parentId);
+        return plannedFolder;
+    }
+
+    /**
+     * Folders are resolved (or created) on the calling thread before anything is uploaded into them,
+     * the file uploads themselves are handed to the upload executor.
+     * Call {@link #awaitUploads()} to wait for the submitted uploads.
+     */
     protected void uploadFile(final java.io.File source, File destFolder) {
+        if (sync && source != null) {
+            mirroredNames.computeIfAbsent(destFolder.getId(), id -> ConcurrentHashMap.newKeySet());
+            listSubtree(destFolder);
+        }
+        if (source != null && source.isDirectory()) {
+            createMissingFolders(source, destFolder);
+            uploadDirectory(source, destFolder);
+        } else {
+            if (source != null) {
+                uploadFiles(Collections.singletonList(source), destFolder);
+            }
+        }
+    }
+
+    /**
+     * Uploads a file or directory the upload patterns matched into the sub folders of the destination its parent has in the workspace,
+     * so files of the same name in different directories do not overwrite each other. The sub folders are created when missing.
+     */
+    protected void uploadFile(final java.io.File source, final File destFolder, final List<String> subFolders) {
+        if (sync && !subFolders.isEmpty()) {
+            // The destination is mirrored as a whole, its sub folders are found in its listing
+            mirroredNames.computeIfAbsent(destFolder.getId(), id -> ConcurrentHashMap.newKeySet());
+            listSubtree(destFolder);
+        }
+        File folder = destFolder;
+        for (String subFolder : subFolders) {
+            mirrored(folder, subFolder);
+            folder = findOrCreateFolder(folder, subFolder);
+            if (folder == null) {
+                return;
+            }
+        }
+        uploadFile(source, folder);
+    }
+
+    private void uploadDirectory(final java.io.File source, final File destFolder) {
+        mirrored(destFolder, source.getName());
+        File destSubFolder = findOrCreateFolder(destFolder, source.getName());
+        if (destSubFolder != null) {
+            if (sync) {
+                mirroredNames.computeIfAbsent(destSubFolder.getId(), id -> ConcurrentHashMap.newKeySet());
+            }
+            List<java.io.File> sourceFiles = new ArrayList<>();
+            List<java.io.File> sourceDirs = new ArrayList<>();
+            for (java.io.File sourceFile : listDirectory(source)) {
+                (sourceFile.isDirectory() ? sourceDirs : sourceFiles).add(sourceFile);
+            }
+            uploadFiles(sourceFiles, destSubFolder);
+            for (java.io.File sourceDir : sourceDirs) {
+                uploadDirectory(sourceDir, destSubFolder);
+            }
+        }
+    }
+
+    /**
+     * @return the files and directories in the directory that are not excluded, sorted
+     */
+    @SuppressFBWarnings
+    private List<java.io.File> listDirectory(final java.io.File directory) {
+        java.io.File[] children = Objects.requireNonNull(directory.listFiles());
+        Arrays.sort(children);
+        List<java.io.File> included = new ArrayList<>();
+        for (java.io.File child : children) {
+            if (!excludes.isExcluded(child.toPath())) {
+                included.add(child);
+            }
+        }
+        return included;
+    }
+
+    /**
+     * A folder of a local directory tree that does not exist in Drive yet.
+     */
+    private static class PlannedFolder {
+        final java.io.File source;
+        final File existingParent;
+        final PlannedFolder plannedParent;
+        final int depth;
+        File folder;
+        boolean created;
+
+        PlannedFolder(final java.io.File source, final File existingParent, final PlannedFolder plannedParent, final int depth) {
+            this.source = source;
+            this.existingParent = existingParent;
+            this.plannedParent = plannedParent;
+            this.depth = depth;
+        }
+
+        File getParent() {
+            return plannedParent != null ? plannedParent.folder : existingParent;
+        }
+
+        boolean canBeCreated() {
+            return plannedParent == null || plannedParent.created;
+        }
+    }
+
+    /**
+     * Creates the missing remote folders of a local directory tree before its content is uploaded.
+     * Below a missing folder everything is missing, so the whole set is known after looking up the existing part.
+     * Their ids are reserved up front with files.generateIds and they are created one tree level at a time,
+     * batching the folders of a level. A single missing folder is left to {@link #findOrCreateFolder}.
+     * Folders that could not be created here are retried one by one while uploading.
+     */
+    private void createMissingFolders(final java.io.File sourceDir, final File destFolder) {
+        List<PlannedFolder> missingFolders = new ArrayList<>();
+        findMissingFolders(sourceDir, destFolder, 0, missingFolders);
+        if (missingFolders.size() < 2) {
+            return;
+        }
+        if (dryRunPlan != null) {
+            planMissingFolders(missingFolders);
+            return;
+        }
+        try {
+            List<String> ids = generateIds(missingFolders.size());
+            for (int i = 0; i < missingFolders.size(); i++) {
+                PlannedFolder missingFolder = missingFolders.get(i);
+                missingFolder.folder = new File().setId(ids.get(i)).setName(missingFolder.source.getName());
+            }
+        } catch (IOException e) {
+            listener.error(String.format("Error reserving ids for %d folders : %s", missingFolders.size(), e.getMessage()));
+            return;
+        }
+        Map<Integer, List<PlannedFolder>> levels = new TreeMap<>();
+        for (PlannedFolder missingFolder : missingFolders) {
+            levels.computeIfAbsent(missingFolder.depth, depth -> new ArrayList<>()).add(missingFolder);
+        }
+        for (List<PlannedFolder> level : levels.values()) {
+            List<PlannedFolder> creatable = new ArrayList<>();
+            for (PlannedFolder missingFolder : level) {
+                if (missingFolder.canBeCreated()) {
+                    creatable.add(missingFolder);
+                }
+            }
+            createFolders(creatable);
+        }
+    }
+
+    private void findMissingFolders(final java.io.File sourceDir, final File parentFolder, final int depth, final List<PlannedFolder> missingFolders) {
+        Optional<File> existingFolder = findFolderInFolder(parentFolder, sourceDir.getName());
+        List<java.io.File> sourceSubDirs = new ArrayList<>();
+        for (java.io.File sourceFile : listDirectory(sourceDir)) {
+            if (sourceFile.isDirectory()) {
+                sourceSubDirs.add(sourceFile);
+            }
+        }
+        if (existingFolder.isPresent()) {
+            if (!sourceSubDirs.isEmpty() && folderCache.getContents(existingFolder.get().getId()) == null) {
+                try {
+                    // One listing answers for all sub folders, and is reused when uploading into the folder
+                    listFolder(existingFolder.get());
+                } catch (IOException e) {
+                    // The sub folders are then searched one by one
+                }
+            }
+            for (java.io.File sourceSubDir : sourceSubDirs) {
+                findMissingFolders(sourceSubDir, existingFolder.get(), depth + 1, missingFolders);
+            }
+        } else {
+            planFolders(sourceDir, parentFolder, null, depth, missingFolders);
+        }
+    }
+
+    private void planFolders(final java.io.File sourceDir, final File existingParent, final PlannedFolder plannedParent, final int depth,
+                             final List<PlannedFolder> missingFolders) {
+        PlannedFolder missingFolder = new PlannedFolder(sourceDir, existingParent, plannedParent, depth);
+        missingFolders.add(missingFolder);
+        for (java.io.File sourceFile : listDirectory(sourceDir)) {
+            if (sourceFile.isDirectory()) {
+                planFolders(sourceFile, null, missingFolder, depth + 1, missingFolders);
+            }
+        }
+    }
+
+    private void planMissingFolders(final List<PlannedFolder> missingFolders) {
+        List<String> names = new ArrayList<>();
+        for (PlannedFolder missingFolder : missingFolders) {
+            names.add(missingFolder.source.getName());
+        }
+        List<File> plannedFolders = dryRunPlan.createFolders(names);
+        // Parents come before their sub folders, so their placeholders are known
+        for (int i = 0; i < missingFolders.size(); i++) {
+            PlannedFolder missingFolder = missingFolders.get(i);
+            missingFolder.folder = plannedFolders.get(i);
+            File parentFolder = missingFolder.getParent();
+            folderCache.putNewFolder(parentFolder.getId(), missingFolder.folder.getName(), missingFolder.folder);
+            listener.getLogger().printf("Would create Folder %s (%s) in %s (%s)%n",
+                missingFolder.folder.getName(), missingFolder.folder.getId(), parentFolder.getName(), parentFolder.getId());
+        }
+    }
+
+    private List<String> generateIds(final int count) throws IOException {
+        List<String> ids = new ArrayList<>();
+        while (ids.size() < count) {
+            int idCount = Math.min(MAX_GENERATED_IDS, count - ids.size());
+            ids.addAll(requestExecutor.execute("reserving folder ids", () -> drive.files().generateIds()
+                .setCount(idCount)
+                .setSpace("drive")
+                .execute())
+                .getIds());
+        }
+        return ids;
+    }
+
+    private void createFolders(final List<PlannedFolder> missingFolders) {
+        if (missingFolders.size() == 1) {
+            PlannedFolder missingFolder = missingFolders.get(0);
+            try {
+                folderCreated(missingFolder, requestExecutor.executeCreate("creating folder " + missingFolder.folder.getName(),
+                    () -> createFolderRequest(missingFolder.getParent(), missingFolder.folder.getName(), missingFolder.folder.getId()).execute(),
+                    () -> findCreatedFolder(missingFolder.folder.getId())));
+            } catch (IOException e) {
+                listener.error(String.format("Error creating folder %s : %s", missingFolder.folder.getName(), e.getMessage()));
+            }
+            return;
+        }
+        for (int start = 0; start < missingFolders.size(); start += MAX_BATCH_SIZE) {
+            List<PlannedFolder> batchFolders = missingFolders.subList(start, Math.min(missingFolders.size(), start + MAX_BATCH_SIZE));
+            try {
+                executeBatch("creating " + batchFolders.size() + " folders", batch -> {
+                    for (PlannedFolder missingFolder : batchFolders) {
+                        batch.queue(createFolderRequest(missingFolder.getParent(), missingFolder.folder.getName(), missingFolder.folder.getId()),
+                            new JsonBatchCallback<File>() {
+                                @Override
+                                public void onSuccess(File newFolder, HttpHeaders httpHeaders) {
+                                    folderCreated(missingFolder, newFolder);
+                                }
+
+                                @Override
+                                public void onFailure(GoogleJsonError googleJsonError, HttpHeaders httpHeaders) {
+                                    if (googleJsonError.getCode() == STATUS_CONFLICT) {
+                                        // The id is taken: a retried batch whose first attempt created the folder
+                                        folderCreated(missingFolder, missingFolder.folder);
+                                        return;
+                                    }
+                                    listener.error(String.format("Error creating folder %s : %s", missingFolder.folder.getName(), googleJsonError.getMessage()));
+                                }
+                            });
+                    }
+                });
+            } catch (IOException e) {
+                listener.error(String.format("Error creating %d folders : %s", batchFolders.size(), e.getMessage()));
+            }
+        }
+    }
+
+    private void folderCreated(final PlannedFolder missingFolder, final File newFolder) {
+        File parentFolder = missingFolder.getParent();
+        missingFolder.created = true;
+        folderCache.putNewFolder(parentFolder.getId(), missingFolder.folder.getName(), newFolder);
+        listener.getLogger().printf("Created new Folder %s (%s) in %s (%s)%n",
+            newFolder.getName(), newFolder.getId(), parentFolder.getName(), parentFolder.getId());
+    }
+
+    private void uploadFiles(final List<java.io.File> allSources, final File destFolder) {
+        allSources.forEach(source -> mirrored(destFolder, source.getName()));
+        List<java.io.File> sources = skipUnchanged && uploadJournal != null ? skipJournaledFiles(allSources, destFolder) : allSources;
+        if (sources.isEmpty()) {
+            return;
+        }
+        Map<String, File> destContents;
         try {
-            if (source != null && source.isDirectory()) {
-                File destSubFolder = findFolderInFolder(destFolder, source.getName())
-                    .orElseGet(() -> createNewFolder(destFolder, source.getName()));
-                if (destSubFolder != null) {
-                    for (java.io.File sourceFile : Objects.requireNonNull(source.listFiles())) {
-                        uploadFile(sourceFile, destSubFolder);
+            destContents = listFolder(destFolder);
+        } catch (IOException e) {
+            sources.forEach(source -> statistics.failed());
+            listener.error(String.format("Error listing %s (%s) : %s", destFolder.getName(), destFolder.getId(), e.getMessage()));
+            return;
+        }
+        Map<java.io.File, String> localChecksums = skipUnchanged ? computeChecksums(sources, destContents) : Collections.emptyMap();
+        for (java.io.File source : sources) {
+            File existingFile = findExistingFile(destContents, source);
+            String localChecksum = localChecksums.get(source);
+            if (existingFile != null && localChecksum != null && localChecksum.equals(existingFile.getMd5Checksum())) {
+                skipFile(source, destFolder);
+                recordUpload(destFolder, source, source.length(), source.lastModified(), existingFile);
+                continue;
+            }
+            if (dryRunPlan != null) {
+                planUpload(source, destFolder, existingFile);
+                continue;
+            }
+            uploadExecutor.submit(() -> uploadSingleFile(source, destFolder, destContents));
+        }
+    }
+
+    private void mirrored(final File destFolder, final String name) {
+        if (sync) {
+            mirroredNames.computeIfAbsent(destFolder.getId(), id -> ConcurrentHashMap.newKeySet()).add(name);
+        }
+    }
+
+    /**
+     * Lists a destination and everything below it for a sync, one tree level at a time, with one paginated
+     * listing for up to 50 folders of a level. The contents go to the folder cache, so the upload resolves
+     * its folders and compares its files in memory. Folders whose content is already known are not listed.
+     * When a listing fails the sync leaves the folders it did not list alone.
+     */
+    private void listSubtree(final File rootFolder) {
+        if (remoteEntries.containsKey(rootFolder.getId())) {
+            return;
+        }
+        listener.getLogger().printf("Listing %s (%s) and everything below it%n", rootFolder.getName(), rootFolder.getId());
+        List<File> level = Collections.singletonList(rootFolder);
+        int listedFolders = 0;
+        int listedEntries = 0;
+        try {
+            while (!level.isEmpty()) {
+                List<File> unknownFolders = new ArrayList<>();
+                List<File> nextLevel = new ArrayList<>();
+                for (File folder : level) {
+                    Map<String, File> knownContents = folderCache.getContents(folder.getId());
+                    if (remoteEntries.containsKey(folder.getId())) {
+                        continue;
+                    }
+                    if (knownContents != null) {
+                        remoteEntries.put(folder.getId(), new ArrayList<>(knownContents.values()));
+                        addFolders(knownContents.values(), nextLevel);
+                    } else {
+                        unknownFolders.add(folder);
+                    }
+                }
+                for (int start = 0; start < unknownFolders.size(); start += MAX_NAMES_PER_QUERY) {
+                    List<File> queryFolders = unknownFolders.subList(start, Math.min(unknownFolders.size(), start + MAX_NAMES_PER_QUERY));
+                    Map<String, List<File>> entries = listFolders(queryFolders);
+                    for (File folder : queryFolders) {
+                        List<File> folderEntries = entries.get(folder.getId());
+                        Map<String, File> contents = new HashMap<>();
+                        for (File entry : folderEntries) {
+                            contents.putIfAbsent(entry.getName(), entry);
+                        }
+                        folderCache.putContents(folder.getId(), contents);
+                        remoteEntries.put(folder.getId(), folderEntries);
+                        addFolders(folderEntries, nextLevel);
+                        listedEntries += folderEntries.size();
                     }
+                    listedFolders += queryFolders.size();
+                }
+                level = nextLevel;
+            }
+        } catch (IOException e) {
+            listener.error(String.format("Error listing %s (%s) : %s", rootFolder.getName(), rootFolder.getId(), e.getMessage()));
+        }
+        listener.getLogger().printf("Listed %d file(s) and folder(s) in %d folder(s)%n", listedEntries, listedFolders);
+    }
+
+    private static void addFolders(final Collection<File> entries, final List<File> folders) {
+        for (File entry : entries) {
+            if (GOOGLE_DRIVE_FOLDER_MIMETYPE.equals(entry.getMimeType())) {
+                folders.add(entry);
+            }
+        }
+    }
+
+    /**
+     * @return the content of every folder by folder id, following every result page of a single query
+     */
+    private Map<String, List<File>> listFolders(final List<File> folders) throws IOException {
+        Map<String, List<File>> entries = new HashMap<>();
+        StringBuilder query = new StringBuilder("(");
+        for (File folder : folders) {
+            entries.put(folder.getId(), new ArrayList<>());
+            query.append(query.length() > 1 ? " or " : "").append("'").append(folder.getId()).append("' in parents");
+        }
+        query.append(") and trashed=false");
+        String pageToken = null;
+        do {
+            String currentPageToken = pageToken;
+            FileList result = requestExecutor.execute("listing " + folders.size() + " folder(s)", () -> createListRequest(query.toString())
+                .setFields(SUBTREE_FIELDS)
+                .setPageSize(MAX_PAGE_SIZE)
+                .setPageToken(currentPageToken)
+                .execute());
+            for (File file : result.getFiles()) {
+                // A file of several folders is listed once, in every one of them
+                for (String parentId : file.getParents() != null ? file.getParents() : Collections.<String>emptyList()) {
+                    List<File> folderEntries = entries.get(parentId);
+                    if (folderEntries != null) {
+                        folderEntries.add(file);
+                    }
+                }
+            }
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        return entries;
+    }
+
+    /**
+     * Trashes, in batches, what the mirrored folders hold that the upload did not put there: entries
+     * of other names, and the duplicates of a name besides the one that was updated.
+     * A trashed folder takes its content along. Folders that could not be listed are left alone.
+     * @return the number of trashed files and folders
+     */
+    int trashRemoteOnly() {
+        List<File> remoteOnly = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> mirrored : mirroredNames.entrySet()) {
+            String folderId = mirrored.getKey();
+            List<File> entries = remoteEntries.get(folderId);
+            if (entries == null) {
+                continue;
+            }
+            Map<String, File> contents = folderCache.getContents(folderId);
+            for (File entry : entries) {
+                File used = GOOGLE_DRIVE_FOLDER_MIMETYPE.equals(entry.getMimeType())
+                    ? folderCache.get(folderId, entry.getName()).orElse(null)
+                    : contents != null ? contents.get(entry.getName()) : null;
+                if (!mirrored.getValue().contains(entry.getName()) || used != null && !used.getId().equals(entry.getId())) {
+                    remoteOnly.add(entry);
                 }
+            }
+        }
+        if (dryRunPlan != null) {
+            for (File file : remoteOnly) {
+                listener.getLogger().printf("Would trash %s (%s)%n", file.getName(), file.getId());
+            }
+            dryRunPlan.trash(remoteOnly.size());
+            return remoteOnly.size();
+        }
+        int trashed = trashFiles(remoteOnly);
+        listener.getLogger().printf("Trashed %d of %d remote-only file(s) and folder(s)%n", trashed, remoteOnly.size());
+        return trashed;
+    }
+
+    /**
+     * Skips the files the journal knows as unchanged since their last upload, provided they are still in Drive.
+     * When the folder content is known the check is done on it, otherwise the journaled file ids are looked up
+     * with batched gets asking just for their parents. A journaled file that is no longer in Drive is uploaded again.
+     * @return the files that still need to be compared with Drive
+     */
+    private List<java.io.File> skipJournaledFiles(final List<java.io.File> sources, final File destFolder) {
+        Map<String, File> knownContents = folderCache.getContents(destFolder.getId());
+        Set<String> confirmedIds = Collections.emptySet();
+        if (knownContents == null) {
+            Set<String> journaledIds = new HashSet<>();
+            for (java.io.File source : sources) {
+                uploadJournal.lookup(destFolder.getId(), source).ifPresent(entry -> journaledIds.add(entry.fileId));
+            }
+            confirmedIds = confirmJournaledFiles(journaledIds, destFolder);
+        }
+        List<java.io.File> remainingSources = new ArrayList<>();
+        for (java.io.File source : sources) {
+            Optional<UploadJournal.Entry> entry = uploadJournal.lookup(destFolder.getId(), source);
+            if (entry.isPresent() && (knownContents == null ? confirmedIds.contains(entry.get().fileId) : isStillInDrive(knownContents, source, entry.get()))) {
+                skipFile(source, destFolder);
             } else {
-                if (source != null) {
-                    DriveRequest<File> request;
-                    Optional<File> existingFile = findInFolder(destFolder, source.getName());
-                    if (existingFile.isPresent()) {
-                        listener.getLogger().printf("Updating existing File %s in %s (%s)%n", source.getName(), destFolder.getName(), destFolder.getId());
-                        request = createUpdateFileRequest(existingFile.get(), destFolder, source);
-                    } else {
-                        listener.getLogger().printf("Creating new File %s in %s (%s)%n", source.getName(), destFolder.getName(), destFolder.getId());
-                        request =  createNewFileRequest(destFolder, source);
+                if (dryRunPlan == null) {
+                    uploadJournal.invalidate(destFolder.getId(), source);
+                }
+                remainingSources.add(source);
+            }
+        }
+        return remainingSources;
+    }
+
+    private void skipFile(final java.io.File source, final File destFolder) {
+        if (dryRunPlan != null) {
+            listener.getLogger().printf("Would skip unchanged File %s in %s (%s)%n", source.getName(), destFolder.getName(), destFolder.getId());
+            dryRunPlan.skip();
+        } else {
+            listener.getLogger().printf("Skipping unchanged File %s in %s (%s)%n", source.getName(), destFolder.getName(), destFolder.getId());
+            statistics.skipped(source.length());
+        }
+    }
+
+    private void planUpload(final java.io.File source, final File destFolder, final File existingFile) {
+        long size = source.length();
+        listener.getLogger().printf("Would %s File %s in %s (%s), %d bytes%n", existingFile != null ? "update" : "create",
+            source.getName(), destFolder.getName(), destFolder.getId(), size);
+        dryRunPlan.upload(existingFile != null, size, size < directUploadThreshold, chunkSizer.getChunkSize());
+    }
+
+    /**
+     * @return the ids of the files that are still in the folder and not trashed, files that could not be
+     * looked up are not confirmed and get compared with the folder content
+     */
+    private Set<String> confirmJournaledFiles(final Collection<String> fileIds, final File destFolder) {
+        if (fileIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        listener.getLogger().printf("Checking %d journaled file(s) in %s (%s)%n", fileIds.size(), destFolder.getName(), destFolder.getId());
+        Set<String> confirmedIds = ConcurrentHashMap.newKeySet();
+        List<String> ids = new ArrayList<>(fileIds);
+        for (int start = 0; start < ids.size(); start += MAX_BATCH_SIZE) {
+            List<String> batchIds = ids.subList(start, Math.min(ids.size(), start + MAX_BATCH_SIZE));
+            try {
+                executeBatch("checking " + batchIds.size() + " journaled files", batch -> {
+                    for (String fileId : batchIds) {
+                        batch.queue(createGetRequest(fileId).setFields(JOURNAL_CHECK_FIELDS), new JsonBatchCallback<File>() {
+                            @Override
+                            public void onSuccess(File file, HttpHeaders httpHeaders) {
+                                if (!Boolean.TRUE.equals(file.getTrashed()) && file.getParents() != null && file.getParents().contains(destFolder.getId())) {
+                                    confirmedIds.add(fileId);
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError googleJsonError, HttpHeaders httpHeaders) {
+                                // Deleted since (404) or no longer visible, uploaded again
+                            }
+                        });
+                    }
+                });
+            } catch (IOException e) {
+                // Not confirmed, compared with the folder content instead
+            }
+        }
+        return confirmedIds;
+    }
+
+    private static boolean isStillInDrive(final Map<String, File> destContents, final java.io.File source, final UploadJournal.Entry entry) {
+        File existingFile = findExistingFile(destContents, source);
+        return existingFile != null && existingFile.getId().equals(entry.fileId);
+    }
+
+    private void recordUpload(final File destFolder, final java.io.File source, final long size, final long lastModified, final File driveFile) {
+        if (uploadJournal != null && driveFile != null && dryRunPlan == null) {
+            uploadJournal.record(destFolder.getId(), source,
+                new UploadJournal.Entry(size, lastModified, driveFile.getId(), driveFile.getMd5Checksum()));
+        }
+    }
+
+    /**
+     * Hashes, using all cores, the local files that have a remote counterpart of the same size.
+     * Files of a different size are changed anyway and are never read.
+     */
+    private Map<java.io.File, String> computeChecksums(final List<java.io.File> sources, final Map<String, File> destContents) {
+        Map<java.io.File, String> checksums = new ConcurrentHashMap<>();
+        sources.parallelStream()
+            .filter(source -> {
+                File existingFile = findExistingFile(destContents, source);
+                return existingFile != null && existingFile.getMd5Checksum() != null
+                    && existingFile.getSize() != null && existingFile.getSize() == source.length();
+            })
+            .forEach(source -> {
+                try {
+                    checksums.put(source, Util.getDigestOf(source));
+                } catch (IOException e) {
+                    // Not readable, the upload will report the error
+                }
+            });
+        return checksums;
+    }
+
+    private static File findExistingFile(final Map<String, File> destContents, final java.io.File source) {
+        File existingFile = destContents.get(source.getName());
+        if (existingFile != null && GOOGLE_DRIVE_FOLDER_MIMETYPE.equals(existingFile.getMimeType())) {
+            return null;
+        }
+        return existingFile;
+    }
+
+    protected void awaitUploads() {
+        try {
+            uploadExecutor.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listener.error("Interrupted while waiting for uploads to finish");
+        }
+    }
+
+    /**
+     * Uploads the sources as a single archive, streamed: the archive is compressed on a separate thread
+     * straight into a resumable upload of unknown length, nothing is written to disk.
+     * An earlier bundle with the same name in the folder is updated.
+     * Every request of the upload is retried, a failed chunk is sent again from what Drive confirmed of it.
+     *
+     * @param root the directory the archive entries are relative to
+     */
+    protected void uploadBundle(final Path root, final Collection<Path> sources, final File destFolder, final String bundleName) {
+        try {
+            ArchiverFactory archiverFactory = BundleWriter.archiverFor(bundleName);
+            // A folder a dry run would create is empty
+            Optional<File> existingBundle = DryRunPlan.isPlanned(destFolder) ? Optional.empty()
+                : findInFolderByQuery(String.format("name='%s' and '%s' in parents and trashed=false", escapeQueryValue(bundleName), destFolder.getId()));
+            if (dryRunPlan != null) {
+                planBundle(sources, destFolder, bundleName, existingBundle.isPresent());
+                return;
+            }
+            PipedInputStream archive = new PipedInputStream(BUNDLE_PIPE_SIZE);
+            BundleWriter writer = new BundleWriter(root, sources, excludes, archiverFactory, new PipedOutputStream(archive));
+            Thread writerThread = new Thread(writer, "Google Drive bundle " + bundleName);
+            writerThread.setDaemon(true);
+            CountingInputStream content = new CountingInputStream(archive) {
+                @Override
+                protected synchronized void afterRead(final int n) throws IOException {
+                    super.afterRead(n);
+                    // An archive that could not be completed must not end as a valid upload
+                    if (n < 0 && writer.getFailure() != null) {
+                        throw writer.getFailure();
                     }
-                    executeDriveRequest(request, source.getPath());
                 }
+            };
+            try {
+                writerThread.start();
+                InputStreamContent mediaContent = new InputStreamContent(BundleWriter.contentType(bundleName), content);
+                DriveRequest<File> request = existingBundle.isPresent()
+                    ? createUpdateFileRequest(existingBundle.get(), destFolder, bundleName, mediaContent)
+                    : createNewFileRequest(destFolder, bundleName, mediaContent);
+                listener.getLogger().printf("%s bundle %s in %s (%s)%n", existingBundle.isPresent() ? "Updating" : "Creating",
+                    bundleName, destFolder.getName(), destFolder.getId());
+                request.setFields(UPLOADED_FILE_FIELDS);
+                // A resumable session belongs to the credentials that opened it, all its requests use them
+                try (CredentialPool.Pin pin = CredentialPool.pin()) {
+                    new StreamingUpload(drive, request, "bundle " + bundleName, requestExecutor, chunkSizer, listener).execute();
+                }
+            } finally {
+                // Stops the writer when the upload failed
+                archive.close();
+                writerThread.join();
+            }
+            if (writer.getFailure() != null) {
+                throw writer.getFailure();
+            }
+            listener.getLogger().printf("Bundled %d file(s) into %s, %d bytes%n", writer.getBundledFiles(), bundleName, content.getByteCount());
+            statistics.uploaded(content.getByteCount(), false);
+        } catch (IllegalArgumentException | IOException e) {
+            statistics.failed();
+            listener.error(String.format("Error uploading bundle %s : %s", bundleName, e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            statistics.failed();
+            listener.error(String.format("Interrupted while uploading bundle %s", bundleName));
+        }
+    }
+
+    /**
+     * Plans a bundle by the size of its files, the compressed size is only known once it is written.
+     */
+    private void planBundle(final Collection<Path> sources, final File destFolder, final String bundleName, final boolean update) throws IOException {
+        List<Path> files = BundleWriter.listFiles(sources, excludes);
+        long size = 0;
+        for (Path file : files) {
+            size += Files.size(file);
+        }
+        listener.getLogger().printf("Would %s bundle %s in %s (%s), %d file(s), %d bytes before compression%n", update ? "update" : "create",
+            bundleName, destFolder.getName(), destFolder.getId(), files.size(), size);
+        dryRunPlan.upload(update, size, false, chunkSizer.getChunkSize());
+    }
+
+    void logSummary() {
+        if (dryRunPlan != null) {
+            dryRunPlan.print(listener.getLogger(), requestExecutor.getCalls());
+        } else {
+            statistics.print(listener.getLogger());
+        }
+    }
+
+    @Override
+    public void close() {
+        uploadExecutor.close();
+    }
+
+    private void uploadSingleFile(final java.io.File source, final File destFolder, final Map<String, File> destContents) {
+        try {
+            // Size and modification time before the upload, a file changing while it is uploaded is not journaled as unchanged
+            long size = source.length();
+            long lastModified = source.lastModified();
+            File existingFile = findExistingFile(destContents, source);
+            if (existingFile != null) {
+                listener.getLogger().printf("Updating existing File %s in %s (%s)%n", source.getName(), destFolder.getName(), destFolder.getId());
+            } else {
+                listener.getLogger().printf("Creating new File %s in %s (%s)%n", source.getName(), destFolder.getName(), destFolder.getId());
             }
+            boolean directUpload = size < directUploadThreshold;
+            // A retried upload needs a new request, a resumable one continues its stored session
+            File uploadedFile;
+            // A resumable session belongs to the credentials that opened it, all its requests use them
+            try (CredentialPool.Pin pin = directUpload ? null : CredentialPool.pin()) {
+                uploadedFile = existingFile != null
+                    ? requestExecutor.execute("uploading " + source.getPath(), () -> executeDriveRequest(
+                        createUpdateFileRequest(existingFile, destFolder, source), source, destFolder, directUpload))
+                    : requestExecutor.executeCreate("uploading " + source.getPath(), () -> executeDriveRequest(
+                        createNewFileRequest(destFolder, source), source, destFolder, directUpload),
+                        () -> findCreatedFile(destFolder.getId(), source.getName(), false));
+            }
+            if (existingFile == null && uploadedFile != null) {
+                // The same name may be uploaded again in this step (overlapping patterns), it should then be updated
+                destContents.putIfAbsent(source.getName(), uploadedFile);
+            }
+            recordUpload(destFolder, source, size, lastModified, uploadedFile);
+            statistics.uploaded(size, directUpload);
         } catch (IOException e) {
-            listener.error(e.getMessage());
+            statistics.failed();
+            listener.error(String.format("Error uploading %s : %s", source.getPath(), e.getMessage()));
         }
     }
 
     protected Optional<File> findFolderInFolder(File parentFolder, String name) {
+        Optional<File> cachedFolder = folderCache.get(parentFolder.getId(), name);
+        if (cachedFolder.isPresent()) {
+            return cachedFolder;
+        }
+        if (folderCache.getContents(parentFolder.getId()) != null) {
+            // The parent has been listed (or was just created), so the folder does not exist yet
+            return Optional.empty();
+        }
         listener.getLogger().printf("Searching for %s in %s (%s)%n", name, parentFolder.getName(), parentFolder.getId());
-        return findInFolderByQuery(String.format("mimeType='%s' and name='%s' and '%s' in parents and trashed=false",
-            GOOGLE_DRIVE_FOLDER_MIMETYPE, name, parentFolder.getId()));
+        Optional<File> folder = findInFolderByQuery(String.format("mimeType='%s' and name='%s' and '%s' in parents and trashed=false",
+            GOOGLE_DRIVE_FOLDER_MIMETYPE, escapeQueryValue(name), parentFolder.getId()));
+        folder.ifPresent(found -> folderCache.put(parentFolder.getId(), name, found));
+        return folder;
     }
 
-    protected Optional<File> findInFolder(File parentFolder, String name) {
-        listener.getLogger().printf("Searching for %s in %s (%s)%n", name, parentFolder.getName(), parentFolder.getId());
-        return findInFolderByQuery(String.format("name='%s' and '%s' in parents and trashed=false",
-            name, parentFolder.getId()));
+    protected File findOrCreateFolder(final File parentFolder, final String name) {
+        return findFolderInFolder(parentFolder, name).orElseGet(() -> {
+            File newFolder = createNewFolder(parentFolder, name);
+            folderCache.putNewFolder(parentFolder.getId(), name, newFolder);
+            return newFolder;
+        });
+    }
+
+    /**
+     * Existence check, asks for a single match with just the fields the folder lookups need.
+     */
+    protected Optional<File> findInFolderByQuery(final String query) {
+        try {
+            String pageToken = null;
+            do {
+                String currentPageToken = pageToken;
+                FileList result = requestExecutor.execute("searching " + query, () -> createListRequest(query)
+                    .setFields(FOUND_FILE_FIELDS)
+                    .setPageSize(1)
+                    .setPageToken(currentPageToken)
+                    .execute());
+                for (File file : result.getFiles()) {
+                    listener.getLogger().printf("Found %s (%s)%n", file.getName(), file.getId());
+                    return Optional.of(file);
+                }
+                // An empty page with a token means Drive has not searched everything yet
+                pageToken = result.getNextPageToken();
+            } while (pageToken != null);
+        } catch (IOException e) {
+            listener.error(e.getMessage());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Lists the content of a folder once, following every result page.
+     * @return the content of the folder by file name, served from the cache on later calls
+     */
+    protected Map<String, File> listFolder(final File folder) throws IOException {
+        Map<String, File> cachedContents = folderCache.getContents(folder.getId());
+        if (cachedContents != null) {
+            return cachedContents;
+        }
+        listener.getLogger().printf("Listing %s (%s)%n", folder.getName(), folder.getId());
+        Map<String, File> contents = new HashMap<>();
+        String pageToken = null;
+        do {
+            String currentPageToken = pageToken;
+            FileList result = requestExecutor.execute("listing " + folder.getName(),
+                () -> createListRequest(String.format("'%s' in parents and trashed=false", folder.getId()))
+                    .setFields(FOLDER_CONTENT_FIELDS)
+                    .setPageSize(MAX_PAGE_SIZE)
+                    .setPageToken(currentPageToken)
+                    .execute());
+            for (File file : result.getFiles()) {
+                contents.putIfAbsent(file.getName(), file);
+            }
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        return folderCache.putContents(folder.getId(), contents);
     }
     
-    private void executeDriveRequest(final DriveRequest<File> request, final String filePath) throws IOException {
-        MediaHttpUploader httpUploader = request.getMediaHttpUploader();
-        httpUploader.setDirectUploadEnabled(false);
-        httpUploader.setChunkSize(2 * MB);
-        httpUploader.setProgressListener(uploader -> {
-            switch (uploader.getUploadState()) {
-            case INITIATION_STARTED:
-                listener.getLogger().printf("Start uploading %s%n", filePath);
-                break;
-            case MEDIA_IN_PROGRESS:
-                NumberFormat formatter = new DecimalFormat("#0.00");
-                String progress = formatter.format(uploader.getProgress() * 100);
-                listener.getLogger().println("Uploading in progress %" + progress);
-                break;
-            case MEDIA_COMPLETE:
-                listener.getLogger().printf("Finished uploading %s%n", filePath);
-                break;
-            default:
-                // Ignore other states
-                break;
+    private File executeDriveRequest(final DriveRequest<File> request, final java.io.File source, final File destFolder, final boolean directUpload) throws IOException {
+        request.setFields(UPLOADED_FILE_FIELDS);
+        listener.getLogger().printf("Start uploading %s%n", source.getPath());
+        File uploadedFile;
+        if (directUpload) {
+            request.getMediaHttpUploader().setDirectUploadEnabled(true);
+            uploadedFile = request.execute();
+        } else {
+            String sessionKey = UploadSessionStore.key(destFolder.getId(), source, request.getRequestMethod());
+            uploadedFile = new ResumableUpload(drive, request, source, sessionKey, uploadSessionStore, chunkSizer, listener).execute();
+        }
+        listener.getLogger().printf("Finished uploading %s%n", source.getPath());
+        return uploadedFile;
+    }
+
+    /**
+     * Deletes the files with one of the given names, and of the given type unless it is empty.
+     * An empty type deletes files of any type but no folders, folders are only deleted when their type is given:
+     * a deleted folder takes everything in it along. Blank names are ignored, without any name nothing is deleted.
+     * When the matches could not all be listed nothing is deleted.
+     * The filtering is done by Drive, only the matches are listed, and they are deleted in batches.
+     * @return the number of deleted files
+     */
+    public int cleanup(final String type, final List<String> names) {
+        List<String> cleanupNames = new ArrayList<>();
+        for (String name : names) {
+            if (name != null && !name.trim().isEmpty()) {
+                cleanupNames.add(name.trim());
             }
-        });
-        request.execute();
+        }
+        if (cleanupNames.isEmpty()) {
+            listener.getLogger().println("No names to clean up, nothing is deleted");
+            return 0;
+        }
+        List<File> matches = new ArrayList<>();
+        try {
+            for (int start = 0; start < cleanupNames.size(); start += MAX_NAMES_PER_QUERY) {
+                List<String> queryNames = cleanupNames.subList(start, Math.min(cleanupNames.size(), start + MAX_NAMES_PER_QUERY));
+                StringBuilder query = new StringBuilder("(");
+                for (String name : queryNames) {
+                    query.append(query.length() > 1 ? " or " : "").append("name='").append(escapeQueryValue(name)).append("'");
+                }
+                query.append(")");
+                if (type != null && !type.isEmpty()) {
+                    query.append(" and mimeType='").append(escapeQueryValue(type)).append("'");
+                } else {
+                    query.append(" and mimeType!='").append(GOOGLE_DRIVE_FOLDER_MIMETYPE).append("'");
+                }
+                query.append(" and trashed=false");
+                String pageToken = null;
+                do {
+                    String currentPageToken = pageToken;
+                    FileList result = requestExecutor.execute("searching files to clean up", () -> createListRequest(query.toString())
+                        .setFields(CLEANUP_FIELDS)
+                        .setPageSize(MAX_PAGE_SIZE)
+                        .setPageToken(currentPageToken)
+                        .execute());
+                    matches.addAll(result.getFiles());
+                    pageToken = result.getNextPageToken();
+                } while (pageToken != null);
+            }
+        } catch (IOException e) {
+            listener.error("Error cleaning up files : " + e.getMessage());
+            return 0;
+        }
+        int deleted = deleteFiles(matches);
+        listener.getLogger().printf("Deleted %d of %d matching file(s)%n", deleted, matches.size());
+        return deleted;
+    }
+
+    /**
+     * Prunes the folders in a folder down to the ones the policy keeps. The folders are found with one
+     * paginated listing asking only for their id, name and creation time, and removed in batches.
+     * @param folderPath the path of the folder to prune, its own sub folders are not looked into
+     * @return the number of removed folders
+     */
+    int applyRetention(final String folderPath, final RetentionPolicy policy) {
+        return applyRetention(folderPath, policy, null);
+    }
+
+    /**
+     * Prunes the folders next to the destination of an upload, the destination itself is always kept.
+     * Nothing is pruned when files failed to upload, the folders of earlier builds may be all that is complete.
+     * @param destFolderPath the path of the folder the upload went to, below the folder to prune
+     * @return the number of removed folders
+     */
+    int applyRetentionAfterUpload(final String destFolderPath, final RetentionPolicy policy) {
+        int parentEnd = destFolderPath.lastIndexOf('/');
+        if (parentEnd <= 0) {
+            listener.getLogger().printf("Retention needs a Drive Folder Name below a folder, like builds/42, %s is not pruned%n", destFolderPath);
+            return 0;
+        }
+        String folderPath = destFolderPath.substring(0, parentEnd);
+        if (statistics.getFailedFiles() > 0) {
+            listener.getLogger().printf("%d file(s) failed to upload, %s is not pruned%n", statistics.getFailedFiles(), folderPath);
+            return 0;
+        }
+        String destFolderId = findFolderByPath(destFolderPath).map(File::getId).orElse(null);
+        return applyRetention(folderPath, policy, destFolderId);
+    }
+
+    private int applyRetention(final String folderPath, final RetentionPolicy policy, final String keptFolderId) {
+        Optional<File> parentFolder = findFolderByPath(folderPath);
+        if (!parentFolder.isPresent()) {
+            listener.getLogger().printf("Folder %s not found, nothing to prune%n", folderPath);
+            return 0;
+        }
+        List<File> folders = new ArrayList<>();
+        try {
+            String query = String.format("'%s' in parents and mimeType='%s' and trashed=false", parentFolder.get().getId(), GOOGLE_DRIVE_FOLDER_MIMETYPE);
+            String pageToken = null;
+            do {
+                String currentPageToken = pageToken;
+                FileList result = requestExecutor.execute("listing folders of " + folderPath, () -> createListRequest(query)
+                    .setFields(RETENTION_FIELDS)
+                    .setPageSize(MAX_PAGE_SIZE)
+                    .setPageToken(currentPageToken)
+                    .execute());
+                folders.addAll(result.getFiles());
+                pageToken = result.getNextPageToken();
+            } while (pageToken != null);
+        } catch (IOException e) {
+            listener.error(String.format("Error listing folders of %s : %s", folderPath, e.getMessage()));
+            return 0;
+        }
+        List<File> expired = policy.selectExpired(folders, System.currentTimeMillis());
+        if (keptFolderId != null) {
+            expired.removeIf(folder -> keptFolderId.equals(folder.getId()));
+        }
+        listener.getLogger().printf("Retention keeps %d of %d folder(s) in %s%n", folders.size() - expired.size(), folders.size(), folderPath);
+        if (dryRunPlan != null) {
+            for (File folder : expired) {
+                listener.getLogger().printf("Would %s %s (%s)%n", policy.isTrash() ? "trash" : "delete", folder.getName(), folder.getId());
+            }
+            if (policy.isTrash()) {
+                dryRunPlan.trash(expired.size());
+            } else {
+                dryRunPlan.batch(expired.size());
+            }
+            return expired.size();
+        }
+        int removed = policy.isTrash() ? trashFiles(expired) : deleteFiles(expired);
+        listener.getLogger().printf("%s %d of %d expired folder(s)%n", policy.isTrash() ? "Trashed" : "Deleted", removed, expired.size());
+        return removed;
+    }
+
+    private int deleteFiles(final List<File> files) {
+        AtomicInteger deleted = new AtomicInteger();
+        for (int start = 0; start < files.size(); start += MAX_BATCH_SIZE) {
+            List<File> batchFiles = files.subList(start, Math.min(files.size(), start + MAX_BATCH_SIZE));
+            try {
+                executeBatch("deleting " + batchFiles.size() + " files", batch -> {
+                    for (File file : batchFiles) {
+                        listener.getLogger().printf("Deleting %s (%s)%n", file.getName(), file.getId());
+                        batch.queue(createDeleteRequest(file.getId()), new JsonBatchCallback<Void>() {
+                            @Override
+                            public void onSuccess(Void empty, HttpHeaders httpHeaders) {
+                                deleted.incrementAndGet();
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError googleJsonError, HttpHeaders httpHeaders) {
+                                listener.error(String.format("Error deleting %s (%s) : %s", file.getName(), file.getId(), googleJsonError.getMessage()));
+                            }
+                        });
+                    }
+                });
+            } catch (IOException e) {
+                listener.error(String.format("Error deleting %d files : %s", batchFiles.size(), e.getMessage()));
+            }
+        }
+        return deleted.get();
+    }
+
+    /**
+     * Moves the files to the trash in batches, they can be restored from there.
+     * @return the number of trashed files
+     */
+    protected int trashFiles(final List<File> files) {
+        AtomicInteger trashed = new AtomicInteger();
+        for (int start = 0; start < files.size(); start += MAX_BATCH_SIZE) {
+            List<File> batchFiles = files.subList(start, Math.min(files.size(), start + MAX_BATCH_SIZE));
+            try {
+                executeBatch("trashing " + batchFiles.size() + " files", batch -> {
+                    for (File file : batchFiles) {
+                        listener.getLogger().printf("Trashing %s (%s)%n", file.getName(), file.getId());
+                        batch.queue(createTrashRequest(file.getId()), new JsonBatchCallback<File>() {
+                            @Override
+                            public void onSuccess(File trashedFile, HttpHeaders httpHeaders) {
+                                trashed.incrementAndGet();
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError googleJsonError, HttpHeaders httpHeaders) {
+                                listener.error(String.format("Error trashing %s (%s) : %s", file.getName(), file.getId(), googleJsonError.getMessage()));
+                            }
+                        });
+                    }
+                });
+            } catch (IOException e) {
+                listener.error(String.format("Error trashing %d files : %s", batchFiles.size(), e.getMessage()));
+            }
+        }
+        return trashed.get();
+    }
+
+    /**
+     * Queues the calls of a batch.
+     */
+    protected interface BatchQueuer {
+        void queue(DriveBatch batch) throws IOException;
+    }
+
+    /**
+     * Builds and executes a batch, the whole batch is retried when the batch request itself fails.
+     * Calls rejected by a rate limit within the batch are sent again in a new batch after backing off,
+     * other calls failing within the batch are reported to their callbacks.
+     */
+    protected void executeBatch(final String description, final BatchQueuer queuer) throws IOException {
+        DriveBatch calls = new DriveBatch();
+        queuer.queue(calls);
+        for (int attempt = 0; calls.size() > 0; attempt++) {
+            if (attempt > 0) {
+                requestExecutor.backOff(String.format("%d call(s) of %s", calls.size(), description), "a rate limit", attempt - 1);
+            }
+            DriveBatch sent = calls;
+            boolean retryRateLimited = attempt < requestExecutor.getMaxRetries();
+            // A retried batch request only sends the calls the failed one left without an answer
+            calls = requestExecutor.execute(description, () -> {
+                // The call itself took one request from the budget
+                requestExecutor.acquireBudget(sent.unanswered() - 1);
+                return sent.execute(drive.batch(), retryRateLimited);
+            });
+        }
+    }
+
+    /**
+     * Looks up a folder created with a pre-generated id.
+     * @return the folder, or null when it was not created
+     */
+    private File findCreatedFolder(final String folderId) throws IOException {
+        try {
+            return createGetRequest(folderId).setFields(CREATED_FOLDER_FIELDS).execute();
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == STATUS_NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up a file or folder an earlier attempt of a create may have made, when it has no pre-generated id.
+     * @param parentId the folder it was created in, empty for the root of My Drive
+     * @return the first match, or null when there is none
+     */
+    protected File findCreatedFile(final String parentId, final String name, final boolean folder) throws IOException {
+        String query = String.format("name='%s' and '%s' in parents and trashed=false",
+            escapeQueryValue(name), parentId.isEmpty() || "-".equals(parentId) ? "root" : parentId);
+        if (folder) {
+            query = String.format("mimeType='%s' and %s", GOOGLE_DRIVE_FOLDER_MIMETYPE, query);
+        }
+        String pageToken = null;
+        do {
+            FileList result = createListRequest(query)
+                .setFields("nextPageToken, files(" + (folder ? CREATED_FOLDER_FIELDS : UPLOADED_FILE_FIELDS) + ")")
+                .setPageSize(1)
+                .setPageToken(pageToken)
+                .execute();
+            if (!result.getFiles().isEmpty()) {
+                return result.getFiles().get(0);
+            }
+            // An empty page with a token means Drive has not searched everything yet
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        return null;
+    }
+
+    /**
+     * Escapes a value for use between single quotes in a files.list query.
+     */
+    protected static String escapeQueryValue(final String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
     }
 }
@@ -0,0 +1,85 @@
+package com.generalmobile.googledriveupload;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the Drive requests of one client. Holds up to one second of requests,
+ * so short bursts pass while the average stays under the configured rate, and so under the
+ * Drive quota instead of running into it and backing off.
+ */
+class RequestRateLimiter {
+    private double permitsPerNano;
+    private double capacity;
+    private double available;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param requestsPerSecond the sustained rate, at least 1
+     */
+    RequestRateLimiter(final int requestsPerSecond) {
+        setRate(requestsPerSecond);
+        this.available = capacity;
+    }
+
+    /**
+     * Changes the sustained rate, the permits already in the bucket are kept up to the new capacity.
+     */
+    synchronized void setRequestsPerSecond(final int requestsPerSecond) {
+        refill();
+        setRate(requestsPerSecond);
+        available = Math.min(capacity, available);
+    }
+
+    private void setRate(final int requestsPerSecond) {
+        capacity = Math.max(1, requestsPerSecond);
+        permitsPerNano = capacity / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Takes one permit, waiting for the bucket to refill when it is empty.
+     */
+    void acquire() throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            // Take the permit now, possibly going negative, so waiting threads queue up behind each other
+            available -= 1;
+            waitNanos = available >= 0 ? 0 : (long) (-available / permitsPerNano);
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the Drive request rate limit");
+            }
+        }
+    }
+
+    /**
+     * Takes one permit when one is available right away.
+     */
+    synchronized boolean tryAcquire() {
+        refill();
+        if (available < 1) {
+            return false;
+        }
+        available -= 1;
+        return true;
+    }
+
+    /**
+     * @return the permits in the bucket, negative when requests are already waiting for it to refill
+     */
+    synchronized double getAvailable() {
+        refill();
+        return available;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(capacity, available + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+    }
+}
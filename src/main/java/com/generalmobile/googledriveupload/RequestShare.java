@@ -0,0 +1,13 @@
+package com.generalmobile.googledriveupload;
+
+/**
+ * The share of the request rate of its credentials an upload may use right now. It changes as other uploads
+ * with the same credentials start and finish, the upload asks again every few seconds.
+ * Exported to the agent, so it is asked across the channel.
+ */
+public interface RequestShare {
+    /**
+     * @return the requests per second, 0 when they are not limited
+     */
+    int getRequestsPerSecond();
+}
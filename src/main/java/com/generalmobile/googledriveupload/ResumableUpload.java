@@ -0,0 +1,213 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.googleapis.MethodOverride;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.File;
+import hudson.model.TaskListener;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Optional;
+
+/**
+ * Sends one file through a resumable upload session.
+ * Unlike {@link com.google.api.client.googleapis.media.MediaHttpUploader} the session URI and every offset
+ * Drive confirms are kept in the {@link UploadSessionStore}, so a later attempt asks Drive how far the
+ * session got and sends only the remaining bytes. Sessions Drive no longer knows start over.
+ */
+class ResumableUpload {
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    private static final int STATUS_GONE = 410;
+
+    private final Drive drive;
+    private final DriveRequest<File> request;
+    private final java.io.File source;
+    private final String sessionKey;
+    private final UploadSessionStore sessionStore;
+    private final AdaptiveChunkSizer chunkSizer;
+    private final TaskListener listener;
+
+    /**
+     * @param sessionStore where the session is kept, null to not keep it beyond this attempt
+     */
+    ResumableUpload(final Drive drive, final DriveRequest<File> request, final java.io.File source, final String sessionKey,
+                    final UploadSessionStore sessionStore, final AdaptiveChunkSizer chunkSizer, final TaskListener listener) {
+        this.drive = drive;
+        this.request = request;
+        this.source = source;
+        this.sessionKey = sessionKey;
+        this.sessionStore = sessionStore;
+        this.chunkSizer = chunkSizer;
+        this.listener = listener;
+    }
+
+    File execute() throws IOException {
+        long length = source.length();
+        String contentType = request.getMediaHttpUploader().getMediaContent().getType();
+        Optional<UploadSessionStore.Session> storedSession = sessionStore == null ? Optional.empty() : sessionStore.lookup(sessionKey);
+        UploadSessionStore.Session session = null;
+        if (storedSession.isPresent()) {
+            HttpResponse response = queryStatus(storedSession.get(), length);
+            try {
+                if (response.isSuccessStatusCode()) {
+                    // The last chunk made it before the interruption
+                    forgetSession();
+                    return response.parseAs(File.class);
+                }
+                if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                    session = storedSession.get().confirmed(confirmedOffset(response));
+                    listener.getLogger().printf("Resuming upload of %s at byte %d%n", source.getPath(), session.offset);
+                } else {
+                    listener.getLogger().printf("Upload session of %s expired, starting over%n", source.getPath());
+                    forgetSession();
+                }
+            } finally {
+                response.disconnect();
+            }
+        }
+        if (session == null) {
+            session = startSession(length, contentType);
+        }
+        return uploadChunks(session, length, contentType);
+    }
+
+    private UploadSessionStore.Session startSession(final long length, final String contentType) throws IOException {
+        GenericUrl initiationUrl = request.buildHttpRequestUrl();
+        initiationUrl.put("uploadType", "resumable");
+        HttpContent metadata = request.getHttpContent();
+        HttpRequest initiation = buildRequest(request.getRequestMethod(), initiationUrl, metadata == null ? new EmptyContent() : metadata);
+        initiation.getHeaders().putAll(request.getRequestHeaders());
+        initiation.getHeaders().set("X-Upload-Content-Type", contentType);
+        initiation.getHeaders().set("X-Upload-Content-Length", length);
+        HttpResponse response = initiation.execute();
+        try {
+            if (!response.isSuccessStatusCode()) {
+                throw new HttpResponseException(response);
+            }
+            String sessionUri = response.getHeaders().getLocation();
+            if (sessionUri == null) {
+                throw new IOException("No upload session returned for " + source.getPath());
+            }
+            UploadSessionStore.Session session = new UploadSessionStore.Session(sessionUri, 0, System.currentTimeMillis());
+            rememberSession(session);
+            return session;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private File uploadChunks(final UploadSessionStore.Session startSession, final long length, final String contentType) throws IOException {
+        UploadSessionStore.Session session = startSession;
+        AdaptiveChunkSizer.Measurement chunkMeasurement = chunkSizer.startUpload();
+        chunkMeasurement.reset(session.offset);
+        int chunkSize = chunkSizer.getChunkSize();
+        // One buffer for the chunks of the session, grown to the largest chunk sent so far and released with the session
+        byte[] chunk = new byte[0];
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                int currentChunkSize = (int) Math.min(chunkSize, length - session.offset);
+                if (chunk.length < currentChunkSize) {
+                    chunk = new byte[currentChunkSize];
+                }
+                readChunk(channel, session.offset, chunk, currentChunkSize);
+                HttpRequest chunkRequest = buildRequest(HttpMethods.PUT, new GenericUrl(session.uri),
+                    new ByteArrayContent(contentType, chunk, 0, currentChunkSize));
+                chunkRequest.getHeaders().setContentRange(contentRange(session.offset, currentChunkSize, length));
+                HttpResponse response = chunkRequest.execute();
+                try {
+                    if (response.isSuccessStatusCode()) {
+                        forgetSession();
+                        return response.parseAs(File.class);
+                    }
+                    if (response.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+                        if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND || response.getStatusCode() == STATUS_GONE) {
+                            forgetSession();
+                        }
+                        throw new HttpResponseException(response);
+                    }
+                    session = session.confirmed(confirmedOffset(response));
+                } finally {
+                    response.disconnect();
+                }
+                rememberSession(session);
+                chunkSize = chunkMeasurement.chunkCompleted(session.offset);
+                NumberFormat formatter = new DecimalFormat("#0.00");
+                String progress = formatter.format(length == 0 ? 100 : session.offset * 100.0 / length);
+                listener.getLogger().println("Uploading " + source.getPath() + " in progress %" + progress);
+            }
+        }
+    }
+
+    private HttpResponse queryStatus(final UploadSessionStore.Session session, final long length) throws IOException {
+        HttpRequest statusRequest = buildRequest(HttpMethods.PUT, new GenericUrl(session.uri), new EmptyContent());
+        statusRequest.getHeaders().setContentRange("bytes */" + length);
+        return statusRequest.execute();
+    }
+
+    private HttpRequest buildRequest(final String method, final GenericUrl url, final HttpContent content) throws IOException {
+        HttpRequest httpRequest = drive.getRequestFactory().buildRequest(method, url, content);
+        new MethodOverride().intercept(httpRequest);
+        httpRequest.setParser(drive.getObjectParser());
+        httpRequest.setThrowExceptionOnExecuteError(false);
+        // 308 means resume incomplete here, not a redirect
+        httpRequest.setFollowRedirects(false);
+        return httpRequest;
+    }
+
+    private void rememberSession(final UploadSessionStore.Session session) throws IOException {
+        if (sessionStore != null) {
+            sessionStore.put(sessionKey, session);
+        }
+    }
+
+    private void forgetSession() throws IOException {
+        if (sessionStore != null) {
+            sessionStore.remove(sessionKey);
+        }
+    }
+
+    /**
+     * @return the number of bytes Drive has, from a "bytes=0-last" range header, 0 when there is no range yet
+     */
+    private static long confirmedOffset(final HttpResponse response) {
+        String range = response.getHeaders().getRange();
+        if (range == null || range.indexOf('-') < 0) {
+            return 0;
+        }
+        return Long.parseLong(range.substring(range.indexOf('-') + 1).trim()) + 1;
+    }
+
+    private static String contentRange(final long offset, final int chunkSize, final long length) {
+        if (chunkSize == 0) {
+            return "bytes */" + length;
+        }
+        return "bytes " + offset + "-" + (offset + chunkSize - 1) + "/" + length;
+    }
+
+    /**
+     * Reads a chunk into the first chunkSize bytes of the buffer.
+     */
+    private static void readChunk(final FileChannel channel, final long offset, final byte[] chunk, final int chunkSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, chunkSize);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("File got shorter while uploading");
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which folders of a parent folder to keep: the last N created, or the ones newer than an age, or both,
+ * a folder is kept when either keeps it. The others are trashed, or deleted for good.
+ */
+class RetentionPolicy implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int keepLast;
+    private final int maxAgeDays;
+    private final boolean trash;
+
+    /**
+     * @param keepLast the number of newest folders to keep, 0 to not keep by count
+     * @param maxAgeDays the age in days up to which folders are kept, 0 to not keep by age
+     * @param trash whether the other folders are moved to the trash instead of deleted
+     */
+    RetentionPolicy(final int keepLast, final int maxAgeDays, final boolean trash) {
+        this.keepLast = Math.max(0, keepLast);
+        this.maxAgeDays = Math.max(0, maxAgeDays);
+        this.trash = trash;
+    }
+
+    /**
+     * @return whether the policy removes anything at all
+     */
+    boolean isEnabled() {
+        return keepLast > 0 || maxAgeDays > 0;
+    }
+
+    boolean isTrash() {
+        return trash;
+    }
+
+    /**
+     * @param folders the folders with their creation time
+     * @return the folders the policy does not keep, newest first
+     */
+    List<File> selectExpired(final List<File> folders, final long now) {
+        List<File> newestFirst = new ArrayList<>(folders);
+        // A folder without a creation time counts as the newest, it is never removed for its age
+        newestFirst.sort(Comparator.comparingLong(RetentionPolicy::createdTime).reversed());
+        long oldestKept = now - TimeUnit.DAYS.toMillis(maxAgeDays);
+        List<File> expired = new ArrayList<>();
+        for (int i = 0; i < newestFirst.size(); i++) {
+            File folder = newestFirst.get(i);
+            boolean keptByCount = i < keepLast;
+            boolean keptByAge = maxAgeDays > 0 && createdTime(folder) >= oldestKept;
+            if (!keptByCount && !keptByAge) {
+                expired.add(folder);
+            }
+        }
+        return expired;
+    }
+
+    private static long createdTime(final File folder) {
+        return folder.getCreatedTime() != null ? folder.getCreatedTime().getValue() : Long.MAX_VALUE;
+    }
+}
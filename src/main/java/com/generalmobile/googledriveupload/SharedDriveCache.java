@@ -0,0 +1,117 @@
+package com.generalmobile.googledriveupload;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller side cache of the shared drive ids resolved by name, shared by all builds.
+ * Entries are keyed by credentials id and shared drive name, since another account may see another drive
+ * under the same name. They expire after {@link #TTL_MINUTES} and are invalidated when a step
+ * using the cached id fails, so a renamed or recreated drive is looked up again.
+ */
+final class SharedDriveCache {
+    static final long TTL_MINUTES = Long.getLong(SharedDriveCache.class.getName() + ".ttlMinutes", 60);
+
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final String sharedDriveId;
+        final long expires;
+
+        Entry(final String sharedDriveId, final long expires) {
+            this.sharedDriveId = sharedDriveId;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The shared drive id of one step: an id given by the step wins, otherwise a cached id is used and only
+     * an id that was really looked up is cached, so the entry still expires for a busy job.
+     */
+    static final class Resolution {
+        private final String credentialsId;
+        private final String sharedDriveName;
+        private final String sharedDriveId;
+        private final boolean cached;
+
+        private Resolution(final String credentialsId, final String sharedDriveName, final String sharedDriveId, final boolean cached) {
+            this.credentialsId = credentialsId;
+            this.sharedDriveName = sharedDriveName;
+            this.sharedDriveId = sharedDriveId;
+            this.cached = cached;
+        }
+
+        /**
+         * @return the id of the drive, empty when it still has to be looked up by name
+         */
+        String getSharedDriveId() {
+            return sharedDriveId;
+        }
+
+        /**
+         * Records the id the step ended up using.
+         * @return the id
+         */
+        String resolved(final String resolvedId) {
+            if (sharedDriveId.isEmpty() && !sharedDriveName.isEmpty()) {
+                put(credentialsId, sharedDriveName, resolvedId);
+            }
+            return resolvedId;
+        }
+
+        /**
+         * Forgets a cached id the step failed with, the drive may have been renamed or deleted.
+         */
+        void failed() {
+            if (cached) {
+                invalidate(credentialsId, sharedDriveName);
+            }
+        }
+    }
+
+    private SharedDriveCache() {
+    }
+
+    static Resolution resolve(final String credentialsId, final String sharedDriveId, final String sharedDriveName) {
+        if (sharedDriveId.isEmpty() && !sharedDriveName.isEmpty()) {
+            Optional<String> cachedId = get(credentialsId, sharedDriveName);
+            if (cachedId.isPresent()) {
+                return new Resolution(credentialsId, sharedDriveName, cachedId.get(), true);
+            }
+        }
+        return new Resolution(credentialsId, sharedDriveName, sharedDriveId, false);
+    }
+
+    static Optional<String> get(final String credentialsId, final String sharedDriveName) {
+        Entry entry = ENTRIES.get(key(credentialsId, sharedDriveName));
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            ENTRIES.remove(key(credentialsId, sharedDriveName), entry);
+            return Optional.empty();
+        }
+        return Optional.of(entry.sharedDriveId);
+    }
+
+    static void put(final String credentialsId, final String sharedDriveName, final String sharedDriveId) {
+        if (sharedDriveId != null) {
+            ENTRIES.put(key(credentialsId, sharedDriveName),
+                new Entry(sharedDriveId, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(TTL_MINUTES)));
+        }
+    }
+
+    static void invalidate(final String credentialsId, final String sharedDriveName) {
+        ENTRIES.remove(key(credentialsId, sharedDriveName));
+    }
+
+    static void clear() {
+        ENTRIES.clear();
+    }
+
+    private static String key(final String credentialsId, final String sharedDriveName) {
+        return credentialsId + "/" + sharedDriveName;
+    }
+}
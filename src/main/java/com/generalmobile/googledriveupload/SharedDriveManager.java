@@ -6,63 +6,86 @@
 
 package com.generalmobile.googledriveupload;
 
-import com.google.api.client.http.FileContent;
+import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.DriveList;
 import com.google.api.services.drive.model.File;
-import com.google.api.services.drive.model.FileList;
-import com.google.api.services.drive.model.TeamDrive;
-import com.google.api.services.drive.model.TeamDriveList;
 import hudson.model.TaskListener;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
 public class SharedDriveManager extends ManagerBase {
-    protected TeamDrive teamDrive;
+    protected final String sharedDriveId;
+    protected final String sharedDriveName;
 
+    /**
+     * Looks up the id of the shared drive by name.
+     */
     SharedDriveManager(final Drive driveService, final String sharedDriveName, final TaskListener listener) throws GeneralSecurityException {
+        this(driveService, findSharedDriveId(driveService, sharedDriveName, listener), sharedDriveName, listener);
+    }
+
+    /**
+     * Uses the id of the shared drive as given, the name is only used for logging.
+     */
+    SharedDriveManager(final Drive driveService, final String sharedDriveId, final String sharedDriveName, final TaskListener listener) {
         super(driveService, listener);
-        teamDrive = findSharedDrive(sharedDriveName).
-            orElseThrow(() -> new GeneralSecurityException("Could not find the shared drive " + sharedDriveName));
+        this.sharedDriveId = sharedDriveId;
+        this.sharedDriveName = sharedDriveName.isEmpty() ? sharedDriveId : sharedDriveName;
+    }
+
+    String getSharedDriveId() {
+        return sharedDriveId;
     }
 
     void uploadFolderToSharedDrive(java.io.File source, String destFolderName) throws GeneralSecurityException {
+        submitFolderToSharedDrive(source, destFolderName);
+        awaitUploads();
+    }
+
+    /**
+     * Resolves the folders of the source and hands its files to the upload executor without waiting for them.
+     */
+    void submitFolderToSharedDrive(java.io.File source, String destFolderName) throws GeneralSecurityException {
+        submitFolderToSharedDrive(source, destFolderName, Collections.emptyList());
+    }
+
+    /**
+     * Like {@link #submitFolderToSharedDrive(java.io.File, String)}, for a source in the given sub folders of the destination.
+     */
+    void submitFolderToSharedDrive(java.io.File source, String destFolderName, List<String> subFolders) throws GeneralSecurityException {
         File destFolder = findDestFolderInSharedDrive(destFolderName);
         if (destFolder == null ) {
             throw new GeneralSecurityException("Could not create " + destFolderName);
         }
         listener.getLogger().printf("Destintation Folder %s (%s)%n", destFolder.getName(), destFolder.getId());
-        uploadFile(source, destFolder);
+        uploadFile(source, destFolder, subFolders);
     }
 
-    @Override
-    protected Optional<File> findInFolderByQuery(final String query){
-        try {
-            String pageToken = null;
-            do {
-                FileList result = drive.files().list()
-                    .setQ(query)
-                    .setPageToken(pageToken)
-                    .setSupportsAllDrives(true)
-                    .setIncludeItemsFromAllDrives(true)
-                    .setTeamDriveId(teamDrive.getId())
-                    .setCorpora("drive")
-                    .execute();
-                for (File file : result.getFiles()) {
-                    listener.getLogger().printf("Found %s (%s)%n", file.getName(), file.getId());
-                    return Optional.of(file);
-                }
-                pageToken = result.getNextPageToken();
-            } while (pageToken != null);
-        } catch (IOException e) {
-            listener.error(e.getMessage());
+    void uploadBundleToSharedDrive(Path root, Collection<Path> sources, String destFolderName, String bundleName) throws GeneralSecurityException {
+        File destFolder = findDestFolderInSharedDrive(destFolderName);
+        if (destFolder == null ) {
+            throw new GeneralSecurityException("Could not create " + destFolderName);
         }
-        return Optional.empty();
+        listener.getLogger().printf("Destintation Folder %s (%s)%n", destFolder.getName(), destFolder.getId());
+        uploadBundle(root, sources, destFolder, bundleName);
+    }
+
+    @Override
+    protected Drive.Files.List createListRequest(final String query) throws IOException {
+        return drive.files().list()
+            .setQ(query)
+            .setSupportsAllDrives(true)
+            .setIncludeItemsFromAllDrives(true)
+            .setTeamDriveId(sharedDriveId)
+            .setCorpora("drive");
     }
 
     @Override
@@ -71,79 +94,141 @@ public class SharedDriveManager extends ManagerBase {
     }
     
     @Override
-    protected DriveRequest<File> createUpdateFileRequest(final File existingFile, final File destFolder, final java.io.File source) throws IOException {
-        // Create new File content
-        String type = Files.probeContentType(source.toPath());
-        FileContent newContentInputStream = new FileContent(type, source);
+    protected Drive.Files.Create createFolderRequest(final File parentFolder, final String name, final String id) throws IOException {
+        return createFolderRequest(parentFolder.getId(), name, id);
+    }
+
+    @Override
+    protected Drive.Files.Delete createDeleteRequest(final String fileId) throws IOException {
+        return drive.files()
+            .delete(fileId)
+            .setSupportsTeamDrives(true);
+    }
+
+    @Override
+    protected Drive.Files.Get createGetRequest(final String fileId) throws IOException {
+        return drive.files()
+            .get(fileId)
+            .setSupportsTeamDrives(true);
+    }
+
+    @Override
+    protected Drive.Files.Update createTrashRequest(final String fileId) throws IOException {
+        return drive.files()
+            .update(fileId, new File().setTrashed(true))
+            .setSupportsTeamDrives(true)
+            .setFields("id");
+    }
+
+    @Override
+    protected DriveRequest<File> createUpdateFileRequest(final File existingFile, final File destFolder, final String name,
+                                                         final AbstractInputStreamContent content) throws IOException {
         // For update API file should not have any parents, but should use addParents (=> using empty collection) 
-        File newContent = createNewFile(Collections.emptyList(), source.getName(), type); 
+        File newContent = createNewFile(Collections.emptyList(), name, content.getType()); 
         // Update existing file with the new File content
         return drive.files()
-            .update(existingFile.getId(), newContent, newContentInputStream)
+            .update(existingFile.getId(), newContent, content)
             .setSupportsTeamDrives(true)
             .setAddParents(destFolder.getId()); 
     }
 
     @Override
-    protected DriveRequest<File> createNewFileRequest(final File destFolder, final java.io.File source) throws IOException {
-        // Create new File content
-        String type = Files.probeContentType(source.toPath());
-        FileContent newContentInputStream = new FileContent(type, source);
-        File newContent = createNewFile(Collections.singletonList(destFolder.getId()), source.getName(), type);
+    protected DriveRequest<File> createNewFileRequest(final File destFolder, final String name, final AbstractInputStreamContent content) throws IOException {
+        File newContent = createNewFile(Collections.singletonList(destFolder.getId()), name, content.getType());
         // Create a new file with the new File content
         return drive.files()
-            .create(newContent, newContentInputStream)
+            .create(newContent, content)
             .setSupportsTeamDrives(true);
     }
     
-    private Optional<TeamDrive> findSharedDrive(String sharedDriveName) {
+    /**
+     * Pages through the shared drives the credentials can see, asking Drive to filter them by name.
+     */
+    static String findSharedDriveId(final Drive drive, final String sharedDriveName, final TaskListener listener) throws GeneralSecurityException {
         try {
-            listener.getLogger().println("Searching for TeamDrives");
-            TeamDriveList teamDriveList = drive.teamdrives().list().execute();
-            if (teamDriveList.getTeamDrives() != null && !teamDriveList.getTeamDrives().isEmpty()) {
-                for (TeamDrive teamDrive : teamDriveList.getTeamDrives()) {
-                    if (teamDrive.getName().equals(sharedDriveName)) {
-                        return Optional.of(teamDrive);
+            listener.getLogger().println("Searching for Shared Drives");
+            String pageToken = null;
+            do {
+                DriveList driveList = drive.drives().list()
+                    .setQ(String.format("name = '%s'", escapeQueryValue(sharedDriveName)))
+                    .setFields("nextPageToken, drives(id, name)")
+                    .setPageSize(100)
+                    .setPageToken(pageToken)
+                    .execute();
+                if (driveList.getDrives() != null) {
+                    for (com.google.api.services.drive.model.Drive sharedDrive : driveList.getDrives()) {
+                        if (sharedDrive.getName().equals(sharedDriveName)) {
+                            return sharedDrive.getId();
+                        }
                     }
                 }
-            }
+                pageToken = driveList.getNextPageToken();
+            } while (pageToken != null);
         } catch (IOException e) {
-            listener.error("Error accessing TeamDriveList ", e);
+            listener.error("Error accessing Shared Drives " + e.getMessage());
         }
         listener.error("Shared Drive " + sharedDriveName + " not found.");
-        return Optional.empty();
+        throw new GeneralSecurityException("Could not find the shared drive " + sharedDriveName);
     }
 
    private File findDestFolderInSharedDrive(final String destFolderName) throws GeneralSecurityException {
         String[] destinationFolders = destFolderName.split("/");
         // Find or create to level folder
-        listener.getLogger().printf("Searching for %s in %s (%s)%n", destinationFolders[0], teamDrive.getName(), teamDrive.getId());
-        File destFolder = findInFolderByQuery(String.format("mimeType='%s' and name='%s' and trashed=false",
-            GOOGLE_DRIVE_FOLDER_MIMETYPE, destinationFolders[0]))
-            .orElseGet(() -> createNewFolder(teamDrive.getName(), teamDrive.getId(), destinationFolders[0]));
+        File destFolder = findTopFolder(destinationFolders[0]).orElseGet(() -> {
+            File newFolder = createNewFolder(sharedDriveName, sharedDriveId, destinationFolders[0]);
+            folderCache.putNewFolder(sharedDriveId, destinationFolders[0], newFolder);
+            return newFolder;
+        });
         // Find or create additional subdirs
         for(int i=1; i< destinationFolders.length && destFolder != null ; i++) {
-            String subFolderName = destinationFolders[i]; 
-            File newParentFolder = destFolder;
-            destFolder = findFolderInFolder(newParentFolder, subFolderName)
-                .orElseGet(() -> createNewFolder(newParentFolder.getName(), newParentFolder.getId(), subFolderName));
+            destFolder = findOrCreateFolder(destFolder, destinationFolders[i]);
         }
         return destFolder;
     }
     
-    private  File createNewFolder(final String parentName, String parentId, final String name){
-        // Need to create the folder...
+    private Optional<File> findTopFolder(final String name) {
+        Optional<File> cachedFolder = folderCache.get(sharedDriveId, name);
+        if (cachedFolder.isPresent()) {
+            return cachedFolder;
+        }
+        listener.getLogger().printf("Searching for %s in %s (%s)%n", name, sharedDriveName, sharedDriveId);
+        Optional<File> topFolder = findInFolderByQuery(String.format("mimeType='%s' and name='%s' and trashed=false",
+            GOOGLE_DRIVE_FOLDER_MIMETYPE, escapeQueryValue(name)));
+        topFolder.ifPresent(found -> folderCache.put(sharedDriveId, name, found));
+        return topFolder;
+    }
+
+    @Override
+    protected Optional<File> findFolderByPath(final String folderPath) {
+        String[] folders = folderPath.split("/");
+        Optional<File> folder = findTopFolder(folders[0]);
+        for (int i = 1; i < folders.length && folder.isPresent(); i++) {
+            folder = findFolderInFolder(folder.get(), folders[i]);
+        }
+        return folder;
+    }
+
+    private Drive.Files.Create createFolderRequest(final String parentId, final String name, final String id) throws IOException {
         File fileMetadata = new File();
+        fileMetadata.setId(id);
         fileMetadata.setName(name);
-        fileMetadata.setTeamDriveId(teamDrive.getId());
+        fileMetadata.setTeamDriveId(sharedDriveId);
         fileMetadata.set("supportsTeamDrives", true);
         fileMetadata.setMimeType(GOOGLE_DRIVE_FOLDER_MIMETYPE);
         fileMetadata.setParents(Collections.singletonList(parentId));
+        return drive.files().create(fileMetadata)
+            .setSupportsTeamDrives(true)
+            .setFields(CREATED_FOLDER_FIELDS);
+    }
+
+    private  File createNewFolder(final String parentName, String parentId, final String name){
+        if (getDryRunPlan() != null) {
+            return planNewFolder(parentName, parentId, name);
+        }
+        // Need to create the folder...
         try {
-            File newFolder = drive.files().create(fileMetadata)
-                .setSupportsTeamDrives(true)
-                .setFields("id, name, parents")
-                .execute();
+            File newFolder = requestExecutor.executeCreate("creating folder " + name, () -> createFolderRequest(parentId, name, null).execute(),
+                () -> findCreatedFile(parentId, name, true));
             listener.getLogger().printf("Created new Folder %s (%s) in %s (%s)%n",
                 newFolder.getName(), newFolder.getId(), parentName, parentId);
             return newFolder;
@@ -156,47 +241,10 @@ public class SharedDriveManager extends ManagerBase {
     private File createNewFile(final List<String> parentIds,final String name, final String type){
         File fileMetadata = new File();
         fileMetadata.setName(name);
-        fileMetadata.setTeamDriveId(teamDrive.getId());
+        fileMetadata.setTeamDriveId(sharedDriveId);
         fileMetadata.set("supportsTeamDrives", true);
         fileMetadata.setMimeType(type);
         fileMetadata.setParents(parentIds);
         return fileMetadata;
     }
-
-    public void cleanup(final String type, final List<String> names) {
-        try {
-            String pageToken = null;
-            do {
-                FileList result = drive.files().list()
-                    .setPageToken(pageToken)
-                    .setSupportsAllDrives(true)
-                    .setIncludeItemsFromAllDrives(true)
-                    .setTeamDriveId(teamDrive.getId())
-                    .setCorpora("drive")
-                    .execute();
-                List<File> files = result.getFiles();
-                for (File file : files) {
-                    if (file.getMimeType().equals(type) && names.contains(file.getName()) ) {
-                        deleteFile(file);
-                    }
-                }
-                pageToken = result.getNextPageToken();
-            } while (pageToken != null);
-        } catch (IOException e) {
-            listener.error("Error cleaning up files", e);
-        }
-    }
-
-    private void deleteFile(final com.google.api.services.drive.model.File file) {
-        try {
-            listener.getLogger().printf("Deleting %s (%s)%n", file.getName(), file.getId());
-            drive.files()
-                .delete(file.getId())
-                .setSupportsTeamDrives(true)
-                .execute();
-        } catch (IOException e) {
-            listener.error("Error deleting file", e);
-        }
-    }
-
 }
@@ -0,0 +1,185 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.googleapis.MethodOverride;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.File;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sends a stream of unknown length, like a bundle, through a resumable upload session.
+ * Every request of the session goes through the {@link DriveRequestExecutor}, so it is retried like any other call.
+ * The stream cannot be read twice, so the chunk Drive has not confirmed yet is kept in memory: after a failed
+ * attempt Drive is asked how much of it arrived and only the rest is sent again.
+ */
+class StreamingUpload {
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+    private final Drive drive;
+    private final DriveRequest<File> request;
+    private final String name;
+    private final DriveRequestExecutor requestExecutor;
+    private final AdaptiveChunkSizer chunkSizer;
+    private final TaskListener listener;
+    private String sessionUri;
+    // The bytes Drive confirmed so far
+    private long offset;
+    // Whether the last attempt at a chunk failed, Drive may have kept part of it
+    private boolean unconfirmed;
+
+    /**
+     * @param request the create or update request, its media content is the stream to send
+     * @param name what is uploaded, for the build log
+     */
+    StreamingUpload(final Drive drive, final DriveRequest<File> request, final String name, final DriveRequestExecutor requestExecutor,
+                    final AdaptiveChunkSizer chunkSizer, final TaskListener listener) {
+        this.drive = drive;
+        this.request = request;
+        this.name = name;
+        this.requestExecutor = requestExecutor;
+        this.chunkSizer = chunkSizer;
+        this.listener = listener;
+    }
+
+    File execute() throws IOException {
+        String contentType = request.getMediaHttpUploader().getMediaContent().getType();
+        sessionUri = requestExecutor.execute("starting upload of " + name, () -> startSession(contentType));
+        AdaptiveChunkSizer.Measurement chunkMeasurement = chunkSizer.startUpload();
+        chunkMeasurement.reset(0);
+        int chunkSize = chunkSizer.getChunkSize();
+        byte[] chunk = new byte[0];
+        try (InputStream content = request.getMediaHttpUploader().getMediaContent().getInputStream()) {
+            while (true) {
+                if (chunk.length < chunkSize) {
+                    chunk = new byte[chunkSize];
+                }
+                int chunkLength = readChunk(content, chunk, chunkSize);
+                long chunkStart = offset;
+                // A short chunk is the last one, with it the length of the stream is known
+                String length = chunkLength < chunkSize ? String.valueOf(chunkStart + chunkLength) : "*";
+                byte[] currentChunk = chunk;
+                do {
+                    File uploadedFile = requestExecutor.execute("uploading " + name,
+                        () -> sendChunk(currentChunk, chunkStart, chunkLength, length, contentType));
+                    if (uploadedFile != null) {
+                        return uploadedFile;
+                    }
+                } while (offset < chunkStart + chunkLength);
+                if (!"*".equals(length)) {
+                    throw new IOException("Drive did not complete the upload of " + name);
+                }
+                chunkSize = chunkMeasurement.chunkCompleted(offset);
+                listener.getLogger().printf("Uploading %s in progress, %d bytes sent%n", name, offset);
+            }
+        }
+    }
+
+    private String startSession(final String contentType) throws IOException {
+        GenericUrl initiationUrl = request.buildHttpRequestUrl();
+        initiationUrl.put("uploadType", "resumable");
+        HttpContent metadata = request.getHttpContent();
+        HttpRequest initiation = buildRequest(request.getRequestMethod(), initiationUrl, metadata == null ? new EmptyContent() : metadata);
+        initiation.getHeaders().putAll(request.getRequestHeaders());
+        initiation.getHeaders().set("X-Upload-Content-Type", contentType);
+        HttpResponse response = initiation.execute();
+        try {
+            if (!response.isSuccessStatusCode()) {
+                throw GoogleJsonResponseException.from(drive.getJsonFactory(), response);
+            }
+            String location = response.getHeaders().getLocation();
+            if (location == null) {
+                throw new IOException("No upload session returned for " + name);
+            }
+            return location;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Sends what Drive is missing of the chunk.
+     * @param length the length of the stream, * while it is not known
+     * @return the uploaded file once the last chunk arrived, null while Drive waits for more
+     */
+    private File sendChunk(final byte[] chunk, final long chunkStart, final int chunkLength, final String length,
+                           final String contentType) throws IOException {
+        if (unconfirmed) {
+            HttpRequest statusRequest = buildRequest(HttpMethods.PUT, new GenericUrl(sessionUri), new EmptyContent());
+            statusRequest.getHeaders().setContentRange("bytes */" + length);
+            File uploadedFile = confirmed(statusRequest.execute());
+            if (uploadedFile != null) {
+                return uploadedFile;
+            }
+            if (offset < chunkStart) {
+                throw new IOException("Drive lost confirmed bytes of " + name);
+            }
+        }
+        int sent = (int) (offset - chunkStart);
+        int remaining = chunkLength - sent;
+        unconfirmed = true;
+        HttpRequest chunkRequest = buildRequest(HttpMethods.PUT, new GenericUrl(sessionUri),
+            new ByteArrayContent(contentType, chunk, sent, remaining));
+        chunkRequest.getHeaders().setContentRange(remaining == 0
+            ? "bytes */" + length : "bytes " + offset + "-" + (offset + remaining - 1) + "/" + length);
+        File uploadedFile = confirmed(chunkRequest.execute());
+        unconfirmed = false;
+        return uploadedFile;
+    }
+
+    /**
+     * @return the uploaded file when Drive completed the upload, null when it confirmed part of it
+     */
+    private File confirmed(final HttpResponse response) throws IOException {
+        try {
+            if (response.isSuccessStatusCode()) {
+                return response.parseAs(File.class);
+            }
+            if (response.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+                throw GoogleJsonResponseException.from(drive.getJsonFactory(), response);
+            }
+            // A range of "bytes=0-last", none when nothing arrived yet
+            String range = response.getHeaders().getRange();
+            offset = range == null || range.indexOf('-') < 0 ? 0 : Long.parseLong(range.substring(range.indexOf('-') + 1).trim()) + 1;
+            return null;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private HttpRequest buildRequest(final String method, final GenericUrl url, final HttpContent content) throws IOException {
+        HttpRequest httpRequest = drive.getRequestFactory().buildRequest(method, url, content);
+        new MethodOverride().intercept(httpRequest);
+        httpRequest.setParser(drive.getObjectParser());
+        httpRequest.setThrowExceptionOnExecuteError(false);
+        // 308 means resume incomplete here, not a redirect
+        httpRequest.setFollowRedirects(false);
+        return httpRequest;
+    }
+
+    /**
+     * Reads up to chunkSize bytes, fewer only at the end of the stream.
+     * @return the number of bytes read
+     */
+    private static int readChunk(final InputStream content, final byte[] chunk, final int chunkSize) throws IOException {
+        int read = 0;
+        while (read < chunkSize) {
+            int n = content.read(chunk, read, chunkSize - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+}
@@ -0,0 +1,117 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP transport settings of the global configuration, sent along with the upload to the agent.
+ * Clients with equal settings share a transport.
+ */
+final class TransportSettings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    enum TransportType {
+        /** The JDK HttpURLConnection, its connection pool is sized by the http.maxConnections system property */
+        NET_HTTP,
+        /** Apache HttpClient with its own connection pool */
+        APACHE
+    }
+
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    static final int DEFAULT_TIMEOUT_SECONDS = 20;
+    // The default Drive quota is 1000 requests per 100 seconds per user
+    static final int DEFAULT_REQUESTS_PER_SECOND = 10;
+
+    private final TransportType transportType;
+    private final int maxConnectionsPerRoute;
+    private final int httpClientBufferKb;
+    private final int connectTimeoutSeconds;
+    private final int readTimeoutSeconds;
+    private final int requestsPerSecond;
+
+    TransportSettings(final TransportType transportType, final int maxConnectionsPerRoute, final int httpClientBufferKb,
+                      final int connectTimeoutSeconds, final int readTimeoutSeconds, final int requestsPerSecond) {
+        this.transportType = transportType;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.httpClientBufferKb = httpClientBufferKb;
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+        this.readTimeoutSeconds = readTimeoutSeconds;
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    static TransportSettings defaults() {
+        return new TransportSettings(TransportType.NET_HTTP, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, 0,
+            DEFAULT_TIMEOUT_SECONDS, DEFAULT_TIMEOUT_SECONDS, DEFAULT_REQUESTS_PER_SECOND);
+    }
+
+    // The Apache builder of the Google HTTP client only takes the HttpParams of HttpClient 4.0, which is deprecated
+    @SuppressWarnings("deprecation")
+    HttpTransport newTransport() throws GeneralSecurityException, IOException {
+        if (transportType != TransportType.APACHE) {
+            return GoogleNetHttpTransport.newTrustedTransport();
+        }
+        ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+            .trustCertificates(GoogleUtils.getCertificateTrustStore());
+        HttpParams params = builder.getHttpParams();
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+        ConnManagerParams.setMaxTotalConnections(params, Math.max(ConnManagerParams.getMaxTotalConnections(params), maxConnectionsPerRoute));
+        if (httpClientBufferKb > 0) {
+            HttpConnectionParams.setSocketBufferSize(params, httpClientBufferKb * AdaptiveChunkSizer.KB);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the limiter of the requests of one client, null when the rate is not limited
+     */
+    int getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    RequestRateLimiter newRateLimiter() {
+        return requestsPerSecond > 0 ? new RequestRateLimiter(requestsPerSecond) : null;
+    }
+
+    /**
+     * Timeouts are set per request, so they apply to either transport.
+     */
+    void configure(final HttpRequest request) {
+        request.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeoutSeconds));
+        request.setReadTimeout((int) TimeUnit.SECONDS.toMillis(readTimeoutSeconds));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        TransportSettings that = (TransportSettings) o;
+        return maxConnectionsPerRoute == that.maxConnectionsPerRoute
+            && httpClientBufferKb == that.httpClientBufferKb
+            && connectTimeoutSeconds == that.connectTimeoutSeconds
+            && readTimeoutSeconds == that.readTimeoutSeconds
+            && requestsPerSecond == that.requestsPerSecond
+            && transportType == that.transportType;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(transportType, maxConnectionsPerRoute, httpClientBufferKb, connectTimeoutSeconds, readTimeoutSeconds, requestsPerSecond);
+    }
+}
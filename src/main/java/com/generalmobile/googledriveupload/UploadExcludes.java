@@ -0,0 +1,47 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.EnvVars;
+
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The files and directories of the workspace left out of an upload, with all they contain.
+ * Every part of an upload that lists the workspace asks it: the walk for the upload patterns,
+ * the upload of a matching directory and the files of a bundle.
+ */
+class UploadExcludes {
+    static final UploadExcludes NONE = new UploadExcludes(null, Collections.emptyList());
+
+    private final List<PathMatcher> matchers = new ArrayList<>();
+
+    /**
+     * @param excludes globs relative to the workspace
+     */
+    UploadExcludes(final Path root, final List<String> excludes) {
+        for (String exclude : excludes) {
+            matchers.add(UploadFileWalker.globMatcher(root, exclude));
+        }
+    }
+
+    /**
+     * @return the patterns of the comma separated list, with the variables of the build expanded
+     */
+    static List<String> split(final String excludePatterns, final EnvVars env) {
+        return excludePatterns.trim().isEmpty()
+            ? Collections.emptyList() : Arrays.asList(env.expand(excludePatterns.trim()).split("\\s*,\\s*"));
+    }
+
+    boolean isExcluded(final Path path) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
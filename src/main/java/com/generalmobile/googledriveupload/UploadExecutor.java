@@ -0,0 +1,74 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded worker pool for file uploads.
+ * With a parallelism of 1 tasks are run inline, so the upload order is exactly the walk order.
+ * Otherwise at most {@code parallelism} uploads run at once and a small queue sits in front of them;
+ * when that queue is full the submitting thread runs the task itself, which throttles the walk.
+ */
+class UploadExecutor implements Closeable {
+    private static final int QUEUED_TASKS_PER_THREAD = 4;
+
+    private final ThreadPoolExecutor executor;
+    // The owning thread is the one registered party, every submitted task registers itself until done
+    private final Phaser pendingTasks = new Phaser(1);
+
+    UploadExecutor(final int parallelism) {
+        if (parallelism > 1) {
+            executor = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(parallelism * QUEUED_TASKS_PER_THREAD),
+                new NamingThreadFactory(new DaemonThreadFactory(), "GoogleDriveUpload"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
+    }
+
+    void submit(final Runnable task) {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        pendingTasks.register();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    pendingTasks.arriveAndDeregister();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingTasks.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    /**
+     * Blocks until every task submitted so far has finished.
+     */
+    void awaitCompletion() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        pendingTasks.awaitAdvanceInterruptibly(pendingTasks.arrive());
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
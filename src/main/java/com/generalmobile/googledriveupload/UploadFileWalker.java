@@ -0,0 +1,209 @@
+package com.generalmobile.googledriveupload;
+
+import org.apache.commons.lang.SystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the files and directories matching the upload patterns in a single walk of the workspace.
+ * Every path is tested against all patterns, excluded directories and directories no pattern can match
+ * anything in are not entered, and directories are listed in parallel on a fork/join pool.
+ * Symbolic links are followed, but every real directory is walked once, which also ends link cycles.
+ * A matching directory is uploaded with everything in it, so the walk does not look for matches below it:
+ * the matches form an upload plan in which no file is covered twice.
+ */
+class UploadFileWalker {
+    private static final String GLOB_SPECIAL_CHARS = "*?[{\\";
+
+    private final Path root;
+    private final List<UploadPattern> patterns = new ArrayList<>();
+    private final UploadExcludes excludes;
+    private final Set<Path> visitedDirs = ConcurrentHashMap.newKeySet();
+    private final int parallelism;
+
+    /**
+     * A glob relative to the workspace, with what it tells about the directories it can match in.
+     */
+    static class UploadPattern {
+        final PathMatcher matcher;
+        // The leading path segments without wildcards
+        final List<String> literalPrefix = new ArrayList<>();
+        // The depth of the deepest match, -1 when a ** or alternatives make it unbounded
+        final int maxDepth;
+
+        UploadPattern(final Path root, final String pattern) {
+            this.matcher = globMatcher(root, pattern);
+            String[] segments = pattern.split("[/\\\\]");
+            boolean unbounded = pattern.contains("{");
+            boolean literal = true;
+            for (String segment : segments) {
+                unbounded |= segment.contains("**");
+                literal &= segment.chars().noneMatch(c -> GLOB_SPECIAL_CHARS.indexOf(c) >= 0);
+                if (literal) {
+                    literalPrefix.add(segment);
+                }
+            }
+            this.maxDepth = unbounded ? -1 : segments.length;
+        }
+
+        /**
+         * @param relativeDir a directory below the workspace, relative to it
+         * @return whether the pattern can match anything below the directory
+         */
+        boolean mayMatchBelow(final Path relativeDir) {
+            int depth = relativeDir.getNameCount();
+            for (int i = 0; i < Math.min(depth, literalPrefix.size()); i++) {
+                if (!relativeDir.getName(i).toString().equals(literalPrefix.get(i))) {
+                    return false;
+                }
+            }
+            return maxDepth < 0 || depth < maxDepth;
+        }
+    }
+
+    UploadFileWalker(final Path root, final List<String> patterns, final List<String> excludes) {
+        this(root, patterns, excludes, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param excludes globs relative to the workspace of the files and directories to leave out, with all they contain
+     */
+    UploadFileWalker(final Path root, final List<String> patterns, final List<String> excludes, final int parallelism) {
+        this.root = root;
+        for (String pattern : patterns) {
+            this.patterns.add(new UploadPattern(root, pattern));
+        }
+        this.excludes = new UploadExcludes(root, excludes);
+        this.parallelism = parallelism;
+    }
+
+    static PathMatcher globMatcher(final Path root, final String pattern) {
+        //Hack to fix unit tests on Windows
+        String pathMatcherPattern = "glob:" + root.toString() + File.separator + pattern;
+        if (SystemUtils.IS_OS_WINDOWS) pathMatcherPattern = pathMatcherPattern.replace("\\", "\\\\");
+        return FileSystems.getDefault().getPathMatcher(pathMatcherPattern);
+    }
+
+    /**
+     * Receives the matching paths while the walk goes on, called from several threads at once.
+     */
+    interface MatchConsumer {
+        void accept(Path path) throws IOException;
+    }
+
+    Set<Path> walk() throws IOException {
+        Set<Path> matches = ConcurrentHashMap.newKeySet();
+        walk(matches::add);
+        return new HashSet<>(matches);
+    }
+
+    /**
+     * Walks the workspace, handing every match to the consumer as soon as it is found.
+     */
+    void walk(final MatchConsumer consumer) throws IOException {
+        if (matchesAny(root)) {
+            consumer.accept(root);
+            return;
+        }
+        visitedDirs.add(root.toRealPath());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root, consumer));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    boolean matchesAny(final Path path) {
+        for (UploadPattern pattern : patterns) {
+            if (pattern.matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isExcluded(final Path path) {
+        return excludes.isExcluded(path);
+    }
+
+    boolean mayMatchBelow(final Path dir) {
+        Path relativeDir = root.relativize(dir);
+        for (UploadPattern pattern : patterns) {
+            if (pattern.mayMatchBelow(relativeDir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists one directory, the directories in it are walked by forked tasks.
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final MatchConsumer consumer;
+
+        DirectoryTask(final Path dir, final MatchConsumer consumer) {
+            this.dir = dir;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subTasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    // Excluded directories are skipped whole, like node_modules or .git
+                    if (isExcluded(entry)) {
+                        continue;
+                    }
+                    BasicFileAttributes attributes = readAttributes(entry);
+                    boolean matches = matchesAny(entry);
+                    if (matches) {
+                        consumer.accept(entry);
+                    }
+                    // Matches below a matching directory would be sent again, and flattened into the wrong folder.
+                    // A link to a directory walked before, or to an ancestor, is not entered again
+                    if (attributes.isDirectory() && !matches && mayMatchBelow(entry) && visitedDirs.add(entry.toRealPath())) {
+                        subTasks.add(new DirectoryTask(entry, consumer));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    /**
+     * @return the attributes of the file a link points to, of the link itself when it is broken
+     */
+    private static BasicFileAttributes readAttributes(final Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.generalmobile.googledriveupload;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Agent side record of the files uploaded by earlier builds.
+ * Maps the destination folder id and local path of a file, together with the size and modification
+ * time it had when it was uploaded, to the Drive file id and MD5 checksum of the upload.
+ * An unchanged local file can then be skipped without reading it and without asking Drive.
+ */
+class UploadJournal {
+    static final String FILE_NAME = "google-drive-upload-journal.properties";
+    private static final String SEPARATOR = ",";
+
+    private final Path journalFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    static class Entry {
+        final long size;
+        final long lastModified;
+        final String fileId;
+        final String md5Checksum;
+
+        Entry(final long size, final long lastModified, final String fileId, final String md5Checksum) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileId = fileId;
+            this.md5Checksum = md5Checksum == null ? "" : md5Checksum;
+        }
+
+        boolean matches(final java.io.File source) {
+            return source.length() == size && source.lastModified() == lastModified;
+        }
+
+        private String format() {
+            return size + SEPARATOR + lastModified + SEPARATOR + fileId + SEPARATOR + md5Checksum;
+        }
+
+        private static Entry parse(final String value) {
+            String[] fields = value.split(SEPARATOR, -1);
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    UploadJournal(final Path journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Reads the journal, a missing or unreadable journal results in an empty one.
+     */
+    static UploadJournal load(final Path journalFile) {
+        UploadJournal journal = new UploadJournal(journalFile);
+        Properties properties = AgentStateFiles.load(journalFile);
+        for (String key : properties.stringPropertyNames()) {
+            Entry entry = Entry.parse(properties.getProperty(key));
+            if (entry != null) {
+                journal.entries.put(key, entry);
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * @return the entry of the last upload of the file to the folder, provided the file did not change since
+     */
+    Optional<Entry> lookup(final String destFolderId, final java.io.File source) {
+        Entry entry = entries.get(key(destFolderId, source));
+        return entry != null && entry.matches(source) ? Optional.of(entry) : Optional.empty();
+    }
+
+    void record(final String destFolderId, final java.io.File source, final Entry entry) {
+        if (entry.fileId != null) {
+            entries.put(key(destFolderId, source), entry);
+        }
+    }
+
+    void invalidate(final String destFolderId, final java.io.File source) {
+        entries.remove(key(destFolderId, source));
+    }
+
+    /**
+     * Writes the journal, leaving out files that no longer exist in the workspace.
+     */
+    void save() throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            String localPath = entry.getKey().substring(entry.getKey().indexOf('|') + 1);
+            if (Files.exists(Paths.get(localPath))) {
+                properties.setProperty(entry.getKey(), entry.getValue().format());
+            }
+        }
+        AgentStateFiles.store(journalFile, properties, "Files uploaded to Google Drive");
+    }
+
+    private static String key(final String destFolderId, final java.io.File source) {
+        return destFolderId + "|" + source.getAbsolutePath();
+    }
+}
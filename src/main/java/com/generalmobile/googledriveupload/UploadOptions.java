@@ -0,0 +1,130 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.EnvVars;
+
+import java.io.Serializable;
+import java.nio.file.Path;
+
+/**
+ * The tuning options of a {@link GoogleDriveUploader} step, sent along with the upload to the agent.
+ */
+class UploadOptions implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int parallelism;
+    private final boolean skipUnchanged;
+    private final boolean sync;
+    private final boolean keepPaths;
+    private final boolean dryRun;
+    private final RetentionPolicy retention;
+    private final String journalFile;
+    private final String sessionFile;
+    private final int minChunkSizeKb;
+    private final int maxChunkSizeKb;
+    private final int directUploadThresholdKb;
+    private final TransportSettings transportSettings;
+    private final RequestShare requestShare;
+    private final String bundle;
+    private final String excludes;
+
+    /**
+     * @param requestShare the requests per second of the upload slot, exported to the agent, null when they are not limited
+     */
+    UploadOptions(final GoogleDriveUploader step, final String journalFile, final String sessionFile, final RequestShare requestShare) {
+        this.parallelism = step.getParallelism();
+        this.skipUnchanged = step.isSkipUnchanged();
+        this.sync = step.isSync() && step.getBundle().isEmpty();
+        this.keepPaths = step.isKeepPaths();
+        this.dryRun = step.isDryRun();
+        this.retention = new RetentionPolicy(step.getRetainLast(), step.getRetainDays(), true);
+        this.journalFile = journalFile;
+        this.sessionFile = sessionFile;
+        this.minChunkSizeKb = step.getMinChunkSize();
+        this.maxChunkSizeKb = step.getMaxChunkSize();
+        this.directUploadThresholdKb = step.getDirectUploadThreshold();
+        this.transportSettings = GoogleDriveUploadConfiguration.getTransportSettings();
+        this.requestShare = requestShare;
+        this.bundle = step.getBundle();
+        this.excludes = step.getExcludes();
+    }
+
+    /**
+     * @return whether unchanged files are skipped, always when syncing
+     */
+    boolean isSkipUnchanged() {
+        return skipUnchanged || sync;
+    }
+
+    /**
+     * @return whether the destination mirrors the upload, never for a bundle
+     */
+    boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * @return whether matched files and directories keep the directories they are in below the workspace
+     */
+    boolean isKeepPaths() {
+        return keepPaths;
+    }
+
+    /**
+     * @return the agent path of the upload journal, or null when there is none
+     */
+    String getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * @return the agent path of the resumable session store, or null when there is none
+     */
+    String getSessionFile() {
+        return sessionFile;
+    }
+
+    /**
+     * @return the name of the archive to upload the files in, empty to upload them one by one
+     */
+    String getBundle() {
+        return bundle;
+    }
+
+    /**
+     * @return the comma separated patterns of the files and directories not to upload
+     */
+    String getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * @return how to prune the folders next to the Drive folder after the upload, or null to not prune them
+     */
+    RetentionPolicy getRetention() {
+        return retention.isEnabled() ? retention : null;
+    }
+
+    /**
+     * @return the transport settings of the global configuration, read on the controller
+     */
+    TransportSettings getTransportSettings() {
+        return transportSettings;
+    }
+
+    /**
+     * @param root the workspace the exclude patterns are relative to
+     */
+    void applyTo(final ManagerBase driveManager, final UploadJournal journal, final UploadSessionStore sessionStore,
+                 final Path root, final EnvVars env) {
+        driveManager.setParallelism(parallelism);
+        driveManager.setSkipUnchanged(isSkipUnchanged());
+        driveManager.setSync(sync);
+        driveManager.setUploadJournal(journal);
+        driveManager.setUploadSessionStore(sessionStore);
+        driveManager.setChunkSizeBounds(minChunkSizeKb, maxChunkSizeKb);
+        driveManager.setDirectUploadThreshold(directUploadThresholdKb);
+        driveManager.setRequestShare(requestShare);
+        driveManager.setDryRun(dryRun);
+        driveManager.setExcludes(new UploadExcludes(root, UploadExcludes.split(excludes, env)));
+    }
+}
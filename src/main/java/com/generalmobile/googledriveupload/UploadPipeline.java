@@ -0,0 +1,86 @@
+package com.generalmobile.googledriveupload;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects the workspace walk to the uploads: the walker runs on its own thread and puts every match in a
+ * bounded queue, the calling thread takes them out and resolves their folders, the upload executor of the
+ * manager sends the files. Uploads start with the first match, and a walk that runs ahead of the uploads
+ * waits for room in the queue instead of piling up paths.
+ */
+class UploadPipeline {
+    static final int QUEUE_CAPACITY = 256;
+    private static final long PUT_POLL_MILLIS = 100;
+    // Marks the end of the walk, never a real match
+    private static final Path END = Paths.get("");
+
+    private final UploadFileWalker walker;
+    private final BlockingQueue<Path> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile IOException walkFailure;
+    private volatile boolean stopped;
+
+    /**
+     * Handles one match, on the calling thread.
+     */
+    interface UploadStage {
+        void accept(Path path) throws Exception;
+    }
+
+    UploadPipeline(final UploadFileWalker walker) {
+        this.walker = walker;
+    }
+
+    void run(final UploadStage stage) throws Exception {
+        Thread walkerThread = new Thread(this::walk, "Google Drive upload walker");
+        walkerThread.setDaemon(true);
+        walkerThread.start();
+        try {
+            for (Path path = queue.take(); path != END; path = queue.take()) {
+                stage.accept(path);
+            }
+        } finally {
+            // Stops a walk still waiting for room when the uploads failed
+            stopped = true;
+            walkerThread.join();
+        }
+        if (walkFailure != null) {
+            throw walkFailure;
+        }
+    }
+
+    private void walk() {
+        try {
+            walker.walk(this::put);
+        } catch (IOException e) {
+            walkFailure = e;
+        } finally {
+            try {
+                put(END);
+            } catch (InterruptedIOException e) {
+                // Nobody is taking from the queue anymore
+            }
+        }
+    }
+
+    /**
+     * Waits for room in the queue, called by the threads of the walk.
+     */
+    private void put(final Path path) throws InterruptedIOException {
+        try {
+            while (!queue.offer(path, PUT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    throw new InterruptedIOException("Upload stopped while walking the workspace");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while walking the workspace");
+        }
+    }
+}
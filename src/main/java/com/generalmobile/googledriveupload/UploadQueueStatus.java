@@ -0,0 +1,64 @@
+package com.generalmobile.googledriveupload;
+
+import java.util.List;
+
+/**
+ * Snapshot of the uploads of one credentials in the {@link UploadScheduler}, shown by {@link UploadSchedulerLink}.
+ */
+public final class UploadQueueStatus {
+    private final String credentialsId;
+    private final List<String> running;
+    private final List<String> waiting;
+    private final long longestWaitMillis;
+    private final long grantedSlots;
+    private final long averageWaitMillis;
+    private final long maxWaitMillis;
+
+    UploadQueueStatus(final String credentialsId, final List<String> running, final List<String> waiting, final long longestWaitMillis,
+                      final long grantedSlots, final long averageWaitMillis, final long maxWaitMillis) {
+        this.credentialsId = credentialsId;
+        this.running = running;
+        this.waiting = waiting;
+        this.longestWaitMillis = longestWaitMillis;
+        this.grantedSlots = grantedSlots;
+        this.averageWaitMillis = averageWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    /**
+     * @return the uploads holding a slot, with the seconds they hold it
+     */
+    public List<String> getRunning() {
+        return running;
+    }
+
+    /**
+     * @return the uploads waiting for a slot in order, with the seconds they are waiting
+     */
+    public List<String> getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * @return how long the first upload in line is waiting
+     */
+    public long getLongestWaitMillis() {
+        return longestWaitMillis;
+    }
+
+    public long getGrantedSlots() {
+        return grantedSlots;
+    }
+
+    public long getAverageWaitMillis() {
+        return averageWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+}
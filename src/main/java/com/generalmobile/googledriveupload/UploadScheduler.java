@@ -0,0 +1,180 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.model.TaskListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Controller wide scheduler of the uploads, shared by all builds.
+ * Every credentials gets a number of upload slots, steps beyond that wait in first come, first served order,
+ * so a burst of builds uploads a few at a time instead of all of them running into the Drive quota together.
+ * Every running slot gets an equal share of the request rate of the credentials, rebalanced whenever a slot
+ * is granted or released: a lone upload gets the whole rate, and no step can crowd out the other steps
+ * uploading with the same credentials. A credentials is only tracked while it has uploads running or waiting.
+ */
+final class UploadScheduler {
+    private static final UploadScheduler INSTANCE = new UploadScheduler();
+
+    // Guarded by this
+    private final Map<String, CredentialQueue> queues = new TreeMap<>();
+
+    /**
+     * The uploads of one credentials.
+     */
+    private static class CredentialQueue {
+        final Set<Slot> running = new LinkedHashSet<>();
+        final Deque<Slot> waiting = new ArrayDeque<>();
+        int requestsPerSecond;
+        long grantedSlots;
+        long totalWaitMillis;
+        long maxWaitMillis;
+    }
+
+    /**
+     * An upload slot, hold it while uploading and close it afterwards.
+     */
+    final class Slot implements AutoCloseable, RequestShare {
+        final String credentialsId;
+        final String owner;
+        final long queued = System.currentTimeMillis();
+        long granted;
+        volatile int requestBudget;
+
+        private Slot(final String credentialsId, final String owner) {
+            this.credentialsId = credentialsId;
+            this.owner = owner;
+        }
+
+        /**
+         * @return the requests per second this upload may send now, 0 when they are not limited
+         */
+        @Override
+        public int getRequestsPerSecond() {
+            return requestBudget;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    UploadScheduler() {
+    }
+
+    static UploadScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Waits for an upload slot of the credentials.
+     *
+     * @param owner          the upload, as shown on the management page
+     * @param maxConcurrent  the slots of a credentials, 0 to not limit them
+     * @param requestsPerSecond the request rate of a credentials, split between its running slots, 0 to not limit it
+     */
+    synchronized Slot acquire(final String credentialsId, final String owner, final int maxConcurrent, final int requestsPerSecond,
+                              final TaskListener listener) throws InterruptedException {
+        Slot slot = new Slot(credentialsId, owner);
+        CredentialQueue queue = queues.computeIfAbsent(credentialsId, id -> new CredentialQueue());
+        queue.waiting.addLast(slot);
+        try {
+            boolean logged = false;
+            while (queue.waiting.peekFirst() != slot || (maxConcurrent > 0 && queue.running.size() >= maxConcurrent)) {
+                if (!logged) {
+                    listener.getLogger().printf("Waiting for an upload slot of %s, %d upload(s) running, %d ahead%n",
+                        credentialsId, queue.running.size(), queue.waiting.size() - 1);
+                    logged = true;
+                }
+                wait();
+            }
+            queue.waiting.removeFirst();
+            slot.granted = System.currentTimeMillis();
+            queue.running.add(slot);
+            queue.requestsPerSecond = requestsPerSecond;
+            rebalance(queue);
+            long waitMillis = slot.granted - slot.queued;
+            queue.grantedSlots++;
+            queue.totalWaitMillis += waitMillis;
+            queue.maxWaitMillis = Math.max(queue.maxWaitMillis, waitMillis);
+            if (logged) {
+                listener.getLogger().printf("Got an upload slot of %s after %d ms%n", credentialsId, waitMillis);
+            }
+            // The next one in line may fit as well
+            notifyAll();
+            return slot;
+        } catch (InterruptedException e) {
+            queue.waiting.remove(slot);
+            removeIfIdle(slot.credentialsId, queue);
+            notifyAll();
+            throw e;
+        }
+    }
+
+    private synchronized void release(final Slot slot) {
+        CredentialQueue queue = queues.get(slot.credentialsId);
+        if (queue != null && queue.running.remove(slot)) {
+            rebalance(queue);
+            removeIfIdle(slot.credentialsId, queue);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Drops the queue of a credentials without running or waiting uploads, the next upload starts a new one.
+     */
+    private void removeIfIdle(final String credentialsId, final CredentialQueue queue) {
+        if (queue.running.isEmpty() && queue.waiting.isEmpty()) {
+            queues.remove(credentialsId);
+        }
+    }
+
+    /**
+     * Splits the request rate of a credentials between its running slots, the remainder going to the
+     * longest running ones. Every slot keeps at least one request per second.
+     */
+    private static void rebalance(final CredentialQueue queue) {
+        int runningSlots = queue.running.size();
+        int index = 0;
+        for (Slot running : queue.running) {
+            if (queue.requestsPerSecond <= 0) {
+                running.requestBudget = 0;
+            } else {
+                int remainder = queue.requestsPerSecond % runningSlots;
+                running.requestBudget = Math.max(1, queue.requestsPerSecond / runningSlots + (index < remainder ? 1 : 0));
+            }
+            index++;
+        }
+    }
+
+    /**
+     * @return a snapshot of the queue of every credentials with uploads running or waiting
+     */
+    synchronized List<UploadQueueStatus> getStatus() {
+        long now = System.currentTimeMillis();
+        List<UploadQueueStatus> status = new ArrayList<>();
+        for (Map.Entry<String, CredentialQueue> entry : queues.entrySet()) {
+            CredentialQueue queue = entry.getValue();
+            List<String> running = new ArrayList<>();
+            for (Slot slot : queue.running) {
+                running.add(slot.owner + " (" + (now - slot.granted) / 1000 + " s)");
+            }
+            List<String> waiting = new ArrayList<>();
+            long longestWaitMillis = 0;
+            for (Slot slot : queue.waiting) {
+                waiting.add(slot.owner + " (" + (now - slot.queued) / 1000 + " s)");
+                longestWaitMillis = Math.max(longestWaitMillis, now - slot.queued);
+            }
+            status.add(new UploadQueueStatus(entry.getKey(), running, waiting, longestWaitMillis, queue.grantedSlots,
+                queue.grantedSlots == 0 ? 0 : queue.totalWaitMillis / queue.grantedSlots, queue.maxWaitMillis));
+        }
+        return status;
+    }
+}
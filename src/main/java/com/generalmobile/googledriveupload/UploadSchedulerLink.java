@@ -0,0 +1,41 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+import java.util.List;
+
+/**
+ * Management page showing the upload queue of every credentials.
+ */
+@Extension
+public class UploadSchedulerLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Google Drive Uploads";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Running and waiting uploads to Google Drive per credentials.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "google-drive-uploads";
+    }
+
+    public List<UploadQueueStatus> getQueues() {
+        return UploadScheduler.get().getStatus();
+    }
+
+    public int getMaxConcurrentUploads() {
+        return GoogleDriveUploadConfiguration.getMaxConcurrentUploadsSetting();
+    }
+}
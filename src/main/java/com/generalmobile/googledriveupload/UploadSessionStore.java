@@ -0,0 +1,113 @@
+package com.generalmobile.googledriveupload;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent side record of the resumable upload sessions that are in flight.
+ * Maps the destination folder id, local path, size, modification time and request method of a file to the
+ * session URI and the last byte offset Drive confirmed. The store is written after every confirmed chunk,
+ * so an upload interrupted by an agent or controller restart continues where it stopped.
+ */
+class UploadSessionStore {
+    static final String FILE_NAME = "google-drive-upload-sessions.properties";
+    // Drive keeps resumable sessions for a week, older sessions are not even queried
+    static final long SESSION_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(6);
+    private static final String SEPARATOR = ",";
+
+    private final Path sessionFile;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    static class Session {
+        final String uri;
+        final long offset;
+        final long created;
+
+        Session(final String uri, final long offset, final long created) {
+            this.uri = uri;
+            this.offset = offset;
+            this.created = created;
+        }
+
+        Session confirmed(final long confirmedOffset) {
+            return new Session(uri, confirmedOffset, created);
+        }
+
+        boolean isExpired(final long now) {
+            return now - created > SESSION_LIFETIME_MILLIS;
+        }
+
+        private String format() {
+            // The URI goes last, it is the only field that may contain the separator
+            return created + SEPARATOR + offset + SEPARATOR + uri;
+        }
+
+        private static Session parse(final String value) {
+            String[] fields = value.split(SEPARATOR, 3);
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                return new Session(fields[2], Long.parseLong(fields[1]), Long.parseLong(fields[0]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    UploadSessionStore(final Path sessionFile) {
+        this.sessionFile = sessionFile;
+    }
+
+    /**
+     * Reads the store, a missing or unreadable store results in an empty one. Expired sessions are dropped.
+     */
+    static UploadSessionStore load(final Path sessionFile) {
+        UploadSessionStore store = new UploadSessionStore(sessionFile);
+        Properties properties = AgentStateFiles.load(sessionFile);
+        long now = System.currentTimeMillis();
+        for (String key : properties.stringPropertyNames()) {
+            Session session = Session.parse(properties.getProperty(key));
+            if (session != null && !session.isExpired(now)) {
+                store.sessions.put(key, session);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Identifies an upload of the file in its current state, a changed file never resumes the session of an older version.
+     */
+    static String key(final String destFolderId, final java.io.File source, final String requestMethod) {
+        return destFolderId + "|" + source.getAbsolutePath() + "|" + source.length() + "|" + source.lastModified() + "|" + requestMethod;
+    }
+
+    Optional<Session> lookup(final String key) {
+        Session session = sessions.get(key);
+        return session != null && !session.isExpired(System.currentTimeMillis()) ? Optional.of(session) : Optional.empty();
+    }
+
+    void put(final String key, final Session session) throws IOException {
+        sessions.put(key, session);
+        save();
+    }
+
+    void remove(final String key) throws IOException {
+        if (sessions.remove(key) != null) {
+            save();
+        }
+    }
+
+    synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().format());
+        }
+        AgentStateFiles.store(sessionFile, properties, "Resumable uploads to Google Drive in flight");
+    }
+}
@@ -0,0 +1,88 @@
+package com.generalmobile.googledriveupload;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a single step invocation, updated concurrently by the upload workers.
+ */
+class UploadStatistics {
+    private final AtomicInteger uploadedFiles = new AtomicInteger();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicInteger directUploads = new AtomicInteger();
+    private final AtomicInteger failedFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicLong skippedBytes = new AtomicLong();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicLong backoffMillis = new AtomicLong();
+
+    void uploaded(final long bytes, final boolean direct) {
+        uploadedFiles.incrementAndGet();
+        uploadedBytes.addAndGet(bytes);
+        if (direct) {
+            directUploads.incrementAndGet();
+        }
+    }
+
+    void failed() {
+        failedFiles.incrementAndGet();
+    }
+
+    void skipped(final long bytes) {
+        skippedFiles.incrementAndGet();
+        skippedBytes.addAndGet(bytes);
+    }
+
+    void retried(final long backoff) {
+        retries.incrementAndGet();
+        backoffMillis.addAndGet(backoff);
+    }
+
+    int getUploadedFiles() {
+        return uploadedFiles.get();
+    }
+
+    long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    int getDirectUploads() {
+        return directUploads.get();
+    }
+
+    int getResumableUploads() {
+        return getUploadedFiles() - getDirectUploads();
+    }
+
+    int getFailedFiles() {
+        return failedFiles.get();
+    }
+
+    int getSkippedFiles() {
+        return skippedFiles.get();
+    }
+
+    long getSkippedBytes() {
+        return skippedBytes.get();
+    }
+
+    int getRetries() {
+        return retries.get();
+    }
+
+    long getBackoffMillis() {
+        return backoffMillis.get();
+    }
+
+    void print(final PrintStream logger) {
+        logger.printf("Uploaded %d file(s), %d bytes (%d direct, %d resumable), %d failed%n",
+            getUploadedFiles(), getUploadedBytes(), getDirectUploads(), getResumableUploads(), getFailedFiles());
+        if (getSkippedFiles() > 0) {
+            logger.printf("Skipped %d unchanged file(s), %d bytes saved%n", getSkippedFiles(), getSkippedBytes());
+        }
+        if (getRetries() > 0) {
+            logger.printf("Retried %d Drive request(s), %d ms spent backing off%n", getRetries(), getBackoffMillis());
+        }
+    }
+}
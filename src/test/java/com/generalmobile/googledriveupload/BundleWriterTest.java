@@ -0,0 +1,80 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.util.io.ArchiverFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BundleWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void run_writesFilesOnceRelativeToRoot() throws IOException {
+        Path root = temporaryFolder.getRoot().toPath();
+        Files.createDirectories(root.resolve("reports/nested"));
+        Files.write(root.resolve("reports/TEST-1.xml"), "<testsuite/>".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("reports/nested/TEST-2.xml"), "<testsuite/>".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("summary.txt"), "2 tests".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        BundleWriter writer = new BundleWriter(root,
+            Arrays.asList(root.resolve("reports"), root.resolve("summary.txt"), root.resolve("reports/TEST-1.xml")),
+            ArchiverFactory.ZIP, out);
+        writer.run();
+
+        assertNull(writer.getFailure());
+        assertEquals(3, writer.getBundledFiles());
+        List<String> entries = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                entries.add(entry.getName());
+            }
+        }
+        assertEquals(Arrays.asList("reports/TEST-1.xml", "reports/nested/TEST-2.xml", "summary.txt"), entries);
+    }
+
+    @Test
+    public void listFiles_leavesOutExcludedFilesAndDirectories() throws IOException {
+        Path root = temporaryFolder.getRoot().toPath();
+        Files.createDirectories(root.resolve("reports/tmp"));
+        Files.write(root.resolve("reports/TEST-1.xml"), "<testsuite/>".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("reports/build.log"), "log".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("reports/tmp/TEST-2.xml"), "<testsuite/>".getBytes(StandardCharsets.UTF_8));
+
+        List<Path> files = BundleWriter.listFiles(Collections.singletonList(root.resolve("reports")),
+            new UploadExcludes(root, Arrays.asList("**/*.log", "reports/tmp")));
+
+        assertEquals(Collections.singletonList(root.resolve("reports/TEST-1.xml")), files);
+    }
+
+    @Test
+    public void archiverFor_picksFormatByExtension() {
+        assertSame(ArchiverFactory.ZIP, BundleWriter.archiverFor("reports.zip"));
+        assertSame(ArchiverFactory.TARGZ, BundleWriter.archiverFor("reports.tar.gz"));
+        assertSame(ArchiverFactory.TARGZ, BundleWriter.archiverFor("reports.TGZ"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void archiverFor_rejectsUnknownExtension() {
+        BundleWriter.archiverFor("reports.rar");
+    }
+}
@@ -0,0 +1,141 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CredentialPoolTest {
+
+    private final CredentialPool.Member first = new CredentialPool.Member("credentials-1", null, null);
+    private final CredentialPool.Member second = new CredentialPool.Member("credentials-2", null, null);
+
+    @Test
+    public void select_spreadsRequestsRoundRobin() throws InterruptedIOException {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        assertSame(first, pool.select());
+        assertSame(second, pool.select());
+        assertSame(first, pool.select());
+    }
+
+    @Test
+    public void select_avoidsThrottledCredentials() throws InterruptedIOException {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        pool.responded(first, 429);
+        assertTrue(pool.isThrottled(first));
+        assertSame(second, pool.select());
+        assertSame(second, pool.select());
+    }
+
+    @Test
+    public void select_prefersCredentialsWithRequestsLeft() throws InterruptedIOException {
+        CredentialPool.Member limited = new CredentialPool.Member("credentials-1", null, new RequestRateLimiter(1));
+        CredentialPool pool = new CredentialPool(Arrays.asList(limited, second));
+        assertSame(limited, pool.select());
+        // The rate of the first credentials is used up for this second
+        assertSame(second, pool.select());
+        assertSame(second, pool.select());
+    }
+
+    @Test
+    public void select_usesSingleCredentialsEvenWhenThrottled() throws InterruptedIOException {
+        CredentialPool pool = new CredentialPool(Collections.singletonList(first));
+        pool.responded(first, 429);
+        assertSame(first, pool.select());
+        pool.responded(first, 200);
+        assertEquals(1, pool.getMembers().size());
+    }
+
+    @Test
+    public void responded_successDoesNotLiftCooldown() {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        pool.responded(first, 429);
+        pool.responded(first, 200);
+        assertTrue(pool.isThrottled(first));
+        assertFalse(pool.isThrottled(second));
+    }
+
+    @Test
+    public void forbidden_rateLimitReasonThrottles() {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        pool.responded(first, 403);
+        assertFalse(CredentialPool.forbidden(forbiddenError("userRateLimitExceeded")));
+        assertTrue(pool.isThrottled(first));
+        assertFalse(pool.isRemoved(first));
+    }
+
+    @Test
+    public void forbidden_otherReasonNeitherThrottlesNorRemoves() {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        pool.responded(first, 403);
+        assertFalse(CredentialPool.forbidden(forbiddenError("storageQuotaExceeded")));
+        assertFalse(pool.isThrottled(first));
+        assertFalse(pool.isRemoved(first));
+    }
+
+    @Test
+    public void forbidden_accessReasonRemovesCredentials() throws InterruptedIOException {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        pool.responded(first, 403);
+        assertTrue(CredentialPool.forbidden(forbiddenError("insufficientFilePermissions")));
+        assertTrue(pool.isRemoved(first));
+        assertSame(second, pool.select());
+        assertSame(second, pool.select());
+        // Still known, so its token keeps being refreshed
+        assertEquals(2, pool.getMembers().size());
+    }
+
+    @Test
+    public void reset_putsCredentialsBackAndEndsCooldowns() throws InterruptedIOException {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        pool.responded(first, 403);
+        assertTrue(CredentialPool.forbidden(forbiddenError("insufficientFilePermissions")));
+        pool.responded(second, 429);
+        pool.reset();
+        assertFalse(pool.isRemoved(first));
+        assertFalse(pool.isThrottled(second));
+        assertSame(first, pool.select());
+    }
+
+    @Test
+    public void forbidden_keepsLastCredentials() throws InterruptedIOException {
+        CredentialPool pool = new CredentialPool(Collections.singletonList(first));
+        pool.responded(first, 403);
+        assertFalse(CredentialPool.forbidden(forbiddenError("insufficientFilePermissions")));
+        assertFalse(pool.isRemoved(first));
+        assertSame(first, pool.select());
+    }
+
+    @Test
+    public void forbidden_withoutForbiddenAnswerChangesNothing() {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        pool.responded(first, 200);
+        assertFalse(CredentialPool.forbidden(forbiddenError("insufficientFilePermissions")));
+        assertFalse(pool.isRemoved(first));
+    }
+
+    @Test
+    public void pin_sendsRequestsOfThreadWithSameCredentials() throws InterruptedIOException {
+        CredentialPool pool = new CredentialPool(Arrays.asList(first, second));
+        try (CredentialPool.Pin pin = CredentialPool.pin()) {
+            assertSame(first, pool.select());
+            pool.responded(first, 429);
+            // Throttled, but a resumable session cannot move to other credentials
+            assertSame(first, pool.select());
+        }
+        assertSame(second, pool.select());
+    }
+
+    private static GoogleJsonError forbiddenError(final String reason) {
+        return new GoogleJsonError()
+            .setCode(403)
+            .setErrors(Collections.singletonList(new GoogleJsonError.ErrorInfo().setReason(reason)));
+    }
+}
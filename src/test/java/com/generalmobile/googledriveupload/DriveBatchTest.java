@@ -0,0 +1,85 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.batch.BatchCallback;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DriveBatchTest {
+
+    private final Drive drive = new Drive.Builder(new DriveMockHttpTransport(), new JacksonFactory(), mock(Credential.class))
+        .setApplicationName(DriveServiceFactory.APPLICATION_NAME)
+        .build();
+
+    @Test
+    public void execute_afterFailedBatch_sendsOnlyUnansweredCalls() throws IOException {
+        List<String> deleted = new ArrayList<>();
+        DriveBatch calls = new DriveBatch();
+        for (String fileId : new String[] {"file-1", "file-2"}) {
+            calls.queue(drive.files().delete(fileId), new JsonBatchCallback<Void>() {
+                @Override
+                public void onSuccess(final Void result, final HttpHeaders httpHeaders) {
+                    deleted.add(fileId);
+                }
+
+                @Override
+                public void onFailure(final GoogleJsonError error, final HttpHeaders httpHeaders) {
+                    fail(error.getMessage());
+                }
+            });
+        }
+        // The first batch request answers one call and then times out
+        List<BatchCallback<Void, ?>> firstBatch = new ArrayList<>();
+        BatchRequest failing = queueing(firstBatch);
+        doAnswer(invocation -> {
+            firstBatch.get(0).onSuccess(null, new HttpHeaders());
+            throw new SocketTimeoutException("Read timed out");
+        }).when(failing).execute();
+        try {
+            calls.execute(failing, true);
+            fail("The batch request should time out");
+        } catch (SocketTimeoutException expected) {
+            assertEquals(1, calls.unanswered());
+        }
+        List<BatchCallback<Void, ?>> secondBatch = new ArrayList<>();
+        BatchRequest retry = queueing(secondBatch);
+        doAnswer(invocation -> {
+            for (BatchCallback<Void, ?> callback : secondBatch) {
+                callback.onSuccess(null, new HttpHeaders());
+            }
+            return null;
+        }).when(retry).execute();
+        assertEquals(0, calls.execute(retry, true).size());
+        assertEquals(1, secondBatch.size());
+        assertEquals(2, deleted.size());
+        assertEquals(0, calls.unanswered());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BatchRequest queueing(final List<BatchCallback<Void, ?>> callbacks) throws IOException {
+        BatchRequest batch = mock(BatchRequest.class);
+        doAnswer(invocation -> {
+            callbacks.add(invocation.getArgument(3));
+            return batch;
+        }).when(batch).queue(any(), any(), any(), any());
+        when(batch.size()).thenAnswer(invocation -> callbacks.size());
+        return batch;
+    }
+}
@@ -13,7 +13,11 @@ import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 import static com.generalmobile.googledriveupload.GoogleDriveManagerTest.FILE_ID;
@@ -32,10 +36,12 @@ public class DriveMockHttpTransport extends MockHttpTransport {
     static class MockRequest {
         String method;
         String url;
+        String[] queryParameters;
 
-        public MockRequest(final String method, final String url) {
+        public MockRequest(final String method, final String url, final String... queryParameters) {
             this.method = method;
             this.url = url;
+            this.queryParameters = queryParameters;
         }
     }
         
@@ -55,7 +61,23 @@ public class DriveMockHttpTransport extends MockHttpTransport {
         }
     }
     
+    /**
+     * A request that was answered.
+     */
+    static class RecordedRequest {
+        final String method;
+        final String url;
+        final MockLowLevelHttpRequest request;
+
+        RecordedRequest(final String method, final String url, final MockLowLevelHttpRequest request) {
+            this.method = method;
+            this.url = url;
+            this.request = request;
+        }
+    }
+
     private Queue<MockResponse> mockedResponsesQueue = new LinkedList<>();
+    final List<RecordedRequest> recordedRequests = new ArrayList<>();
     
     @Override
     public LowLevelHttpRequest buildRequest(String method, String url) {
@@ -68,9 +90,17 @@ public class DriveMockHttpTransport extends MockHttpTransport {
             "\nexpected :" + mockResponse.expectedRequest.method + " " + mockResponse.expectedRequest.url; 
         assertEquals(errormessage, mockResponse.expectedRequest.method, method);
         assertTrue(errormessage, url.startsWith(mockResponse.expectedRequest.url));
+        for (String queryParameter : mockResponse.expectedRequest.queryParameters) {
+            assertTrue(errormessage, url.contains(queryParameter));
+        }
         return new MockLowLevelHttpRequest() {
             @Override
-            public LowLevelHttpResponse execute() {
+            public LowLevelHttpResponse execute() throws IOException {
+                // Send the content like a real transport would, so file content is read
+                if (getStreamingContent() != null) {
+                    getStreamingContent().writeTo(new ByteArrayOutputStream());
+                }
+                recordedRequests.add(new RecordedRequest(method, url, this));
                 return mockResponse.response;
             }
         };
@@ -93,6 +123,27 @@ public class DriveMockHttpTransport extends MockHttpTransport {
             });
         }
 
+        static public MockResponse rateLimited() {
+            return createResponse(request, () -> {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(429);
+                response.setReasonPhrase("Too Many Requests");
+                response.setContentType(Json.MEDIA_TYPE);
+                response.setContent("{ \"error\": { \"code\": 429, \"message\": \"Rate Limit Exceeded\", " +
+                    "\"errors\": [ { \"domain\": \"usageLimits\", \"reason\": \"rateLimitExceeded\", \"message\": \"Rate Limit Exceeded\" } ] } }");
+                return response;
+            });
+        }
+
+        static public MockResponse notFound() {
+            return createResponse(request, () -> {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(404);
+                response.setReasonPhrase("Not Found");
+                return response;
+            });
+        }
+
         static public MockResponse findFolder(String id, String name) {
             return createResponse(request, () -> {
                 MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
@@ -126,6 +177,75 @@ public class DriveMockHttpTransport extends MockHttpTransport {
         }
     }
 
+    static class FilesListChildrenRequest extends BaseMockRequest {
+
+        /**
+         * @param idsNamesAndTypes the id, name and mime type of every file in the folder
+         */
+        static public MockResponse listChildren(String parentId, String... idsNamesAndTypes) {
+            return createResponse(FilesListRequest.request, () -> {
+                StringBuilder files = new StringBuilder();
+                for (int i = 0; i < idsNamesAndTypes.length; i += 3) {
+                    files.append(i > 0 ? ", " : "").append("{\n" +
+                        "  \"kind\": \"drive#file\",\n" +
+                        "  \"id\": \"" + idsNamesAndTypes[i] + "\",\n" +
+                        "  \"name\": \"" + idsNamesAndTypes[i + 1] + "\",\n" +
+                        "  \"mimeType\": \"" + idsNamesAndTypes[i + 2] + "\",\n" +
+                        "  \"parents\": [\"" + parentId + "\"] }");
+                }
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType(Json.MEDIA_TYPE);
+                response.setContent("{ \"kind\": \"drive#fileList\", \"incompleteSearch\": false, \"files\": [ " + files + "]}");
+                return response;
+            });
+        }
+    }
+
+    static class FilesListFoldersRequest extends BaseMockRequest {
+
+        /**
+         * @param idsNamesAndCreatedTimes the id, name and RFC 3339 creation time of every folder
+         */
+        static public MockResponse listFolders(String... idsNamesAndCreatedTimes) {
+            return createResponse(FilesListRequest.request, () -> {
+                StringBuilder files = new StringBuilder();
+                for (int i = 0; i < idsNamesAndCreatedTimes.length; i += 3) {
+                    files.append(i > 0 ? ", " : "").append("{\n" +
+                        "  \"id\": \"" + idsNamesAndCreatedTimes[i] + "\",\n" +
+                        "  \"name\": \"" + idsNamesAndCreatedTimes[i + 1] + "\",\n" +
+                        "  \"createdTime\": \"" + idsNamesAndCreatedTimes[i + 2] + "\" }");
+                }
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType(Json.MEDIA_TYPE);
+                response.setContent("{ \"files\": [ " + files + "]}");
+                return response;
+            });
+        }
+    }
+
+    static class FilesListWithChecksumRequest extends BaseMockRequest {
+
+        static public MockResponse findFile(String id, String name, String type, String md5Checksum, long size) {
+            return createResponse(FilesListRequest.request, () -> {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType(Json.MEDIA_TYPE);
+                response.setContent("{ \"kind\": \"drive#fileList\", \"incompleteSearch\": false, \"files\": [ " +
+                    "{\n" +
+                    "  \"kind\": \"drive#file\",\n" +
+                    "  \"id\": \"" + id + "\",\n" +
+                    "  \"name\": \"" + name + "\",\n" +
+                    "  \"mimeType\": \""+ type +"\",\n" +
+                    "  \"md5Checksum\": \""+ md5Checksum +"\",\n" +
+                    "  \"size\": \""+ size +"\" }"
+                    +"]}");
+                return response;
+            });
+        }
+    }
+
     static class FilesCreateRequest extends BaseMockRequest {
 
         static final MockRequest request = new MockRequest("POST", "https://www.googleapis.com/drive/v3/files");
@@ -143,13 +263,63 @@ public class DriveMockHttpTransport extends MockHttpTransport {
                 return response;
             });
         }
+
+        static public MockResponse serviceUnavailable() {
+            return createResponse(request, () -> {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(503);
+                response.setReasonPhrase("Service Unavailable");
+                response.setContentType(Json.MEDIA_TYPE);
+                response.setContent("{ \"error\": { \"code\": 503, \"message\": \"Backend Error\", " +
+                    "\"errors\": [ { \"domain\": \"global\", \"reason\": \"backendError\", \"message\": \"Backend Error\" } ] } }");
+                return response;
+            });
+        }
+    }
+
+    static class FilesGenerateIdsRequest extends BaseMockRequest {
+
+        static final MockRequest request = new MockRequest("GET", "https://www.googleapis.com/drive/v3/files/generateIds");
+
+        static public MockResponse generatedIds(String... ids) {
+            return createResponse(request, () -> {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType(Json.MEDIA_TYPE);
+                response.setContent("{ \"kind\": \"drive#generatedIds\", \"space\": \"drive\", \"ids\": [\"" + String.join("\", \"", ids) + "\"]}");
+                return response;
+            });
+        }
     }
 
     static class FilesUploadRequest extends BaseMockRequest {
-        static final MockRequest postRequest = new MockRequest("POST", "https://www.googleapis.com/upload/drive/v3/files?uploadType=resumable");
-        static final MockRequest patchRequest = new MockRequest("PATCH", "https://www.googleapis.com/upload/drive/v3/files/" + FILE_ID +"?addParents=" + FOLDER_ID + "&uploadType=resumable");
+        static final MockRequest postRequest = new MockRequest("POST", "https://www.googleapis.com/upload/drive/v3/files?", "uploadType=resumable");
+        static final MockRequest patchRequest = new MockRequest("PATCH", "https://www.googleapis.com/upload/drive/v3/files/" + FILE_ID +"?", "addParents=" + FOLDER_ID, "uploadType=resumable");
         static final MockRequest putRequest = new MockRequest("PUT", "https://www.googleapis.com/upload/drive/v3/files?uploadType=resumable&upload_id=");
 
+        static final MockRequest multipartPostRequest = new MockRequest("POST", "https://www.googleapis.com/upload/drive/v3/files?", "uploadType=multipart");
+        static final MockRequest multipartPatchRequest = new MockRequest("PATCH", "https://www.googleapis.com/upload/drive/v3/files/" + FILE_ID +"?", "addParents=" + FOLDER_ID, "uploadType=multipart");
+
+        static public MockResponse createMultipartUpload(String id, String name, String type) {
+            return createResponse(multipartPostRequest, () -> fileResponse(id, name, type));
+        }
+
+        static public MockResponse updateMultipartUpload(String id, String name, String type) {
+            return createResponse(multipartPatchRequest, () -> fileResponse(id, name, type));
+        }
+
+        static private MockLowLevelHttpResponse fileResponse(String id, String name, String type) {
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            response.setStatusCode(200);
+            response.setContentType(Json.MEDIA_TYPE);
+            response.setContent("{\n" +
+                "  \"kind\": \"drive#file\",\n" +
+                "  \"id\": \"" + id + "\",\n" +
+                "  \"name\": \"" + name + "\",\n" +
+                "  \"mimeType\": \"" + type + "\" }");
+            return response;
+        }
+
         static public MockResponse initiateCreateUpload(String id, String name, String type) {
             return createResponse(postRequest, () -> {
                 MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
@@ -180,6 +350,24 @@ public class DriveMockHttpTransport extends MockHttpTransport {
             });
         }
 
+        static public MockResponse resumeIncomplete(long lastConfirmedByte) {
+            return createResponse(putRequest, () -> {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(308);
+                response.addHeader("Range", "bytes=0-" + lastConfirmedByte);
+                return response;
+            });
+        }
+
+        static public MockResponse chunkServiceUnavailable() {
+            return createResponse(putRequest, () -> {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(503);
+                response.setReasonPhrase("Service Unavailable");
+                return response;
+            });
+        }
+
         static public MockResponse resumeUpload(String id, String name, String type) {
             return createResponse(putRequest, () -> {
                 MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
@@ -199,6 +387,156 @@ public class DriveMockHttpTransport extends MockHttpTransport {
 
         static final MockRequest request = new MockRequest("POST", "https://www.googleapis.com/batch/drive/v3");
 
+        static public MockResponse deletedFiles(int count) {
+            return createResponse(request, () -> {
+                StringBuilder content = new StringBuilder();
+                for (int i = 1; i <= count; i++) {
+                    content.append("--END_OF_PART\n" +
+                        "Content-Type: application/http\n" +
+                        "Content-ID: response-" + i + "\n" +
+                        "\n" +
+                        "HTTP/1.1 204 No Content\n" +
+                        "\n" +
+                        "\n");
+                }
+                content.append("--END_OF_PART--\n");
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType("multipart/mixed; boundary=END_OF_PART");
+                response.setContent(content.toString());
+                return response;
+            });
+        }
+
+        static public MockResponse foundFiles(String parentId, String... ids) {
+            return createResponse(request, () -> {
+                StringBuilder content = new StringBuilder();
+                for (int i = 0; i < ids.length; i++) {
+                    content.append("--END_OF_PART\n" +
+                        "Content-Type: application/http\n" +
+                        "Content-ID: response-" + (i + 1) + "\n" +
+                        "\n" +
+                        "HTTP/1.1 200 OK\n" +
+                        "Content-Type: application/json; charset=UTF-8\n" +
+                        "\n" +
+                        "{\n" +
+                        " \"id\": \"" + ids[i] + "\",\n" +
+                        " \"trashed\": false,\n" +
+                        " \"parents\": [\"" + parentId + "\"]\n" +
+                        "}\n" +
+                        "\n");
+                }
+                content.append("--END_OF_PART--\n");
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType("multipart/mixed; boundary=END_OF_PART");
+                response.setContent(content.toString());
+                return response;
+            });
+        }
+
+        static public MockResponse notFoundFiles(int count) {
+            return createResponse(request, () -> {
+                StringBuilder content = new StringBuilder();
+                for (int i = 1; i <= count; i++) {
+                    content.append("--END_OF_PART\n" +
+                        "Content-Type: application/http\n" +
+                        "Content-ID: response-" + i + "\n" +
+                        "\n" +
+                        "HTTP/1.1 404 Not Found\n" +
+                        "Content-Type: application/json; charset=UTF-8\n" +
+                        "\n" +
+                        "{ \"error\": { \"code\": 404, \"message\": \"File not found\", " +
+                        "\"errors\": [ { \"domain\": \"global\", \"reason\": \"notFound\", \"message\": \"File not found\" } ] } }\n" +
+                        "\n");
+                }
+                content.append("--END_OF_PART--\n");
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType("multipart/mixed; boundary=END_OF_PART");
+                response.setContent(content.toString());
+                return response;
+            });
+        }
+
+        static public MockResponse rateLimitedCalls(int count) {
+            return createResponse(request, () -> {
+                StringBuilder content = new StringBuilder();
+                for (int i = 1; i <= count; i++) {
+                    content.append("--END_OF_PART\n" +
+                        "Content-Type: application/http\n" +
+                        "Content-ID: response-" + i + "\n" +
+                        "\n" +
+                        "HTTP/1.1 403 Forbidden\n" +
+                        "Content-Type: application/json; charset=UTF-8\n" +
+                        "\n" +
+                        "{ \"error\": { \"code\": 403, \"message\": \"User Rate Limit Exceeded\", " +
+                        "\"errors\": [ { \"domain\": \"usageLimits\", \"reason\": \"userRateLimitExceeded\", \"message\": \"User Rate Limit Exceeded\" } ] } }\n" +
+                        "\n");
+                }
+                content.append("--END_OF_PART--\n");
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType("multipart/mixed; boundary=END_OF_PART");
+                response.setContent(content.toString());
+                return response;
+            });
+        }
+
+        static public MockResponse trashedFiles(String... ids) {
+            return createResponse(request, () -> {
+                StringBuilder content = new StringBuilder();
+                for (int i = 0; i < ids.length; i++) {
+                    content.append("--END_OF_PART\n" +
+                        "Content-Type: application/http\n" +
+                        "Content-ID: response-" + (i + 1) + "\n" +
+                        "\n" +
+                        "HTTP/1.1 200 OK\n" +
+                        "Content-Type: application/json; charset=UTF-8\n" +
+                        "\n" +
+                        "{\n" +
+                        " \"id\": \"" + ids[i] + "\"\n" +
+                        "}\n" +
+                        "\n");
+                }
+                content.append("--END_OF_PART--\n");
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType("multipart/mixed; boundary=END_OF_PART");
+                response.setContent(content.toString());
+                return response;
+            });
+        }
+
+        /**
+         * @param idsAndNames the id and name of every created folder, in the order of the batched requests
+         */
+        static public MockResponse createdFolders(String... idsAndNames) {
+            return createResponse(request, () -> {
+                StringBuilder content = new StringBuilder();
+                for (int i = 0; i < idsAndNames.length; i += 2) {
+                    content.append("--END_OF_PART\n" +
+                        "Content-Type: application/http\n" +
+                        "Content-ID: response-" + (i / 2 + 1) + "\n" +
+                        "\n" +
+                        "HTTP/1.1 200 OK\n" +
+                        "Content-Type: application/json; charset=UTF-8\n" +
+                        "\n" +
+                        "{\n" +
+                        " \"id\": \"" + idsAndNames[i] + "\",\n" +
+                        " \"name\": \"" + idsAndNames[i + 1] + "\"\n" +
+                        "}\n" +
+                        "\n");
+                }
+                content.append("--END_OF_PART--\n");
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.setContentType("multipart/mixed; boundary=END_OF_PART");
+                response.setContent(content.toString());
+                return response;
+            });
+        }
+
         static public MockResponse acceptedPermissions(String id, String email) {
             return createResponse(request, () -> {
                 MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
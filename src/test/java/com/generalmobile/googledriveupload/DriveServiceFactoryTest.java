@@ -0,0 +1,103 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.drive.Drive;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DriveServiceFactoryTest {
+
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(DriveServiceFactory.IDLE_TIMEOUT_MINUTES) + 1;
+
+    private final TransportSettings netHttp = TransportSettings.defaults();
+    private final TransportSettings apache = new TransportSettings(TransportSettings.TransportType.APACHE, 4, 0, 5, 5, 0);
+    private final long now = System.currentTimeMillis();
+
+    @After
+    public void clearClients() throws IOException {
+        DriveServiceFactory.clear();
+    }
+
+    @Test
+    public void lease_reusesClientPerCredentialsAndSettings() throws GeneralSecurityException, IOException {
+        try (DriveServiceFactory.Lease first = lease("credentials-1", netHttp, now);
+             DriveServiceFactory.Lease second = lease("credentials-1", netHttp, now)) {
+            assertSame(first.getDrive(), second.getDrive());
+        }
+    }
+
+    @Test
+    public void lease_sharesTransportBetweenCredentialsWithSameSettings() throws GeneralSecurityException, IOException {
+        try (DriveServiceFactory.Lease first = lease("credentials-1", netHttp, now);
+             DriveServiceFactory.Lease second = lease("credentials-2", netHttp, now)) {
+            assertNotSame(first.getDrive(), second.getDrive());
+            assertSame(transport(first.getDrive()), transport(second.getDrive()));
+        }
+    }
+
+    @Test
+    public void lease_usesOneTransportPerSettings() throws GeneralSecurityException, IOException {
+        try (DriveServiceFactory.Lease first = lease("credentials-1", netHttp, now);
+             DriveServiceFactory.Lease second = lease("credentials-1", apache, now)) {
+            assertNotSame(first.getDrive(), second.getDrive());
+            assertNotSame(transport(first.getDrive()), transport(second.getDrive()));
+            assertTrue(DriveServiceFactory.hasTransport(netHttp));
+            assertTrue(DriveServiceFactory.hasTransport(apache));
+        }
+    }
+
+    @Test
+    public void lease_evictsIdleClientsAndTheirTransport() throws GeneralSecurityException, IOException {
+        Drive evicted;
+        try (DriveServiceFactory.Lease idle = lease("credentials-1", netHttp, now)) {
+            evicted = idle.getDrive();
+        }
+        try (DriveServiceFactory.Lease other = lease("credentials-2", apache, now + IDLE_MILLIS)) {
+            assertFalse(DriveServiceFactory.hasTransport(netHttp));
+        }
+        try (DriveServiceFactory.Lease again = lease("credentials-1", netHttp, now + IDLE_MILLIS)) {
+            assertNotSame(evicted, again.getDrive());
+        }
+    }
+
+    @Test
+    public void lease_keepsLeasedClientsAndTheirTransport() throws GeneralSecurityException, IOException {
+        try (DriveServiceFactory.Lease running = lease("credentials-1", netHttp, now)) {
+            try (DriveServiceFactory.Lease other = lease("credentials-2", apache, now + IDLE_MILLIS)) {
+                assertTrue(DriveServiceFactory.hasTransport(netHttp));
+            }
+            try (DriveServiceFactory.Lease again = lease("credentials-1", netHttp, now + IDLE_MILLIS)) {
+                assertSame(running.getDrive(), again.getDrive());
+            }
+        }
+    }
+
+    @Test
+    public void evictIdleClients_withoutLease_shutsDownIdleTransport() throws GeneralSecurityException, IOException {
+        try (DriveServiceFactory.Lease idle = lease("credentials-1", netHttp, now)) {
+            assertTrue(DriveServiceFactory.isEvictionScheduled());
+        }
+        DriveServiceFactory.evictIdleClients(now + IDLE_MILLIS);
+        assertFalse(DriveServiceFactory.hasTransport(netHttp));
+        assertFalse(DriveServiceFactory.isEvictionScheduled());
+    }
+
+    private static DriveServiceFactory.Lease lease(final String credentialsId, final TransportSettings settings, final long now)
+            throws GeneralSecurityException, IOException {
+        return DriveServiceFactory.lease(Collections.singletonList(credentialsId), Collections.<Credential>singletonList(null), settings, now);
+    }
+
+    private static Object transport(final Drive drive) {
+        return drive.getRequestFactory().getTransport();
+    }
+}
@@ -7,13 +7,16 @@
 package com.generalmobile.googledriveupload;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.GenericUrl;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.drive.Drive;
+import hudson.Util;
 import hudson.model.BuildListener;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.TestRule;
 import org.junit.rules.TestWatcher;
 import org.junit.runner.Description;
@@ -22,13 +25,25 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.UUID;
 import java.util.logging.LogManager;
 
 import static com.generalmobile.googledriveupload.DriveMockHttpTransport.BatchCreateRequest;
 import static com.generalmobile.googledriveupload.DriveMockHttpTransport.FilesCreateRequest;
+import static com.generalmobile.googledriveupload.DriveMockHttpTransport.FilesGenerateIdsRequest;
+import static com.generalmobile.googledriveupload.DriveMockHttpTransport.FilesListChildrenRequest;
+import static com.generalmobile.googledriveupload.DriveMockHttpTransport.FilesListFoldersRequest;
 import static com.generalmobile.googledriveupload.DriveMockHttpTransport.FilesListRequest;
+import static com.generalmobile.googledriveupload.DriveMockHttpTransport.FilesListWithChecksumRequest;
 import static com.generalmobile.googledriveupload.DriveMockHttpTransport.FilesUploadRequest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
 public class GoogleDriveManagerTest {
@@ -38,6 +53,7 @@ public class GoogleDriveManagerTest {
     public static final String FOLDER_ID = UUID.randomUUID().toString();
     public static final String FOLDER_NAME = "testFolder";
     public static final String SUB_FOLDER_ID = UUID.randomUUID().toString();
+    public static final String SUB_FOLDER_NAME = "subFolder";
     public static final String FILE_ID = UUID.randomUUID().toString();
     public static final String FILE_TYPE = "txt";
     public static final String FILE_ID_2 = UUID.randomUUID().toString();
@@ -56,6 +72,9 @@ public class GoogleDriveManagerTest {
         }
     };
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @BeforeClass
     public static void setupLogger() throws IOException {
         LogManager.getLogManager().readConfiguration(GoogleDriveManagerTest.class.getResourceAsStream("/logging.properties"));
@@ -96,9 +115,7 @@ public class GoogleDriveManagerTest {
         mockHttpTransport.mock(FilesListRequest.emptyList());  // Search for driveFolder 
         mockHttpTransport.mock(FilesCreateRequest.createFolder(FOLDER_ID, FOLDER_NAME)); // Create driveFolder 
         mockHttpTransport.mock(BatchCreateRequest.acceptedPermissions(PERMISSION_ID, USER_EMAIL)); // Send out permissions for driveFolder 
-        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for file in driveFolder
-        mockHttpTransport.mock(FilesUploadRequest.initiateCreateUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE));  // create new Drive file 
-        mockHttpTransport.mock(FilesUploadRequest.resumeUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // Upload file content
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // create new Drive file with its content
         // act
         googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
         // assert
@@ -107,7 +124,6 @@ public class GoogleDriveManagerTest {
             "Searching for "  + FOLDER_NAME,
             "Created new Folder " + FOLDER_NAME + " (" + FOLDER_ID + ") in root ()",
             "Write permissions set to Folder " + FOLDER_NAME + " for " + USER_EMAIL,
-            "Searching for " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Creating new File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Start uploading " + fileToUpload.getAbsolutePath(),
             "Finished uploading " + fileToUpload.getAbsolutePath());
@@ -122,8 +138,7 @@ public class GoogleDriveManagerTest {
         mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for driveFolder 
         mockHttpTransport.mock(FilesCreateRequest.createFolder(FOLDER_ID, FOLDER_NAME)); // Create driveFolder 
         mockHttpTransport.mock(BatchCreateRequest.acceptedPermissions(PERMISSION_ID, USER_EMAIL)); // Send out permissions driveFolder 
-        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for file in driveFolder
-        mockHttpTransport.mock(FilesUploadRequest.initiateCreateUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE));  // create new Drive file  
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE));  // create new Drive file, fails reading the content
         // act
         googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
         // assert
@@ -132,10 +147,9 @@ public class GoogleDriveManagerTest {
             "Searching for "  + FOLDER_NAME,
             "Created new Folder " + FOLDER_NAME + " (" + FOLDER_ID + ") in root ()",
             "Write permissions set to Folder " + FOLDER_NAME + " for " + USER_EMAIL,
-            "Searching for " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Creating new File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Start uploading " + fileToUpload.getAbsolutePath());
-        mockBuildListenerHelper.assertErrors(fileToUpload.getAbsolutePath() + " (The system cannot find the file specified)");
+        mockBuildListenerHelper.assertErrors("Error uploading " + fileToUpload.getPath() + " : " + fileToUpload.getAbsolutePath() + " (The system cannot find the file specified)");
     }
 
     @Test
@@ -143,9 +157,8 @@ public class GoogleDriveManagerTest {
         // arrange
         File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
         mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME));  // Search for driveFolder 
-        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for file in driveFolder
-        mockHttpTransport.mock(FilesUploadRequest.initiateCreateUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // create new Drive file 
-        mockHttpTransport.mock(FilesUploadRequest.resumeUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // Upload file content
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // List driveFolder
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // create new Drive file with its content
         // act
         googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
         // assert
@@ -153,7 +166,7 @@ public class GoogleDriveManagerTest {
             "userMail " + USER_EMAIL,
             "Searching for "  + FOLDER_NAME,
             "Found " + FOLDER_NAME  + " (" + FOLDER_ID + ")",
-            "Searching for " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Creating new File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Start uploading " + fileToUpload.getAbsolutePath(),
             "Finished uploading " + fileToUpload.getAbsolutePath());
@@ -164,8 +177,9 @@ public class GoogleDriveManagerTest {
     public void uploadFolder_withExistingFileAndExistDestFolderAndExistDestFile() {
         // arrange
         File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        googleDriveManager.setDirectUploadThreshold(0); // Use a resumable upload
         mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder 
-        mockHttpTransport.mock(FilesListRequest.findFile(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // Search for file in driveFolder 
+        mockHttpTransport.mock(FilesListRequest.findFile(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // List driveFolder 
         mockHttpTransport.mock(
             FilesUploadRequest.initiateUpdateUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE));  // Update existing  Drive file (new version) 
         mockHttpTransport.mock(FilesUploadRequest.resumeUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE));  // Upload file content
@@ -176,8 +190,7 @@ public class GoogleDriveManagerTest {
             "userMail " + USER_EMAIL,
             "Searching for "  + FOLDER_NAME,
             "Found " + FOLDER_NAME+ " (" + FOLDER_ID + ")",
-            "Searching for " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
-            "Found " + fileToUpload.getName() + " (" + FILE_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Updating existing File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Start uploading " + fileToUpload.getAbsolutePath(),
             "Finished uploading " + fileToUpload.getAbsolutePath());
@@ -193,14 +206,9 @@ public class GoogleDriveManagerTest {
         mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for driveFolder 
         mockHttpTransport.mock(FilesCreateRequest.createFolder(FOLDER_ID, FOLDER_NAME));  // Create driveFolder 
         mockHttpTransport.mock(BatchCreateRequest.acceptedPermissions(PERMISSION_ID, USER_EMAIL)); // Send out permissions driveFolder 
-        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for subdir dir folder in driveFolder 
-        mockHttpTransport.mock(FilesCreateRequest.createFolder(SUB_FOLDER_ID, dirToUpload.getName())); // Create subdir dir folder in driveFolder 
-        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for file in driveFolder
-        mockHttpTransport.mock(FilesUploadRequest.initiateCreateUpload(FILE_ID, file_1.getName(), FILE_TYPE));  // create new Drive file 
-        mockHttpTransport.mock(FilesUploadRequest.resumeUpload(FILE_ID, file_1.getName(), FILE_TYPE)); // Upload file content
-        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for 2nd file in driveFolder
-        mockHttpTransport.mock(FilesUploadRequest.initiateCreateUpload(FILE_ID_2, file_2.getName(), FILE_TYPE));  // create new Drive file 
-        mockHttpTransport.mock(FilesUploadRequest.resumeUpload(FILE_ID_2, file_2.getName(), FILE_TYPE)); // Upload file content   
+        mockHttpTransport.mock(FilesCreateRequest.createFolder(SUB_FOLDER_ID, dirToUpload.getName())); // Create subdir dir folder in new driveFolder 
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, file_1.getName(), FILE_TYPE)); // create new Drive file with its content
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID_2, file_2.getName(), FILE_TYPE)); // create new Drive file with its content
         // act
         googleDriveManager.uploadFolder(dirToUpload, FOLDER_NAME, USER_EMAIL);
         // assert
@@ -209,17 +217,743 @@ public class GoogleDriveManagerTest {
             "Searching for "  + FOLDER_NAME,
             "Created new Folder " + FOLDER_NAME + " (" + FOLDER_ID + ") in root ()",
             "Write permissions set to Folder " + FOLDER_NAME + " for " + USER_EMAIL,
-            "Searching for " + dirToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
             "Created new Folder " + dirToUpload.getName() + " (" + SUB_FOLDER_ID + ") in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
-            "Searching for " + file_1.getName() + " in " + dirToUpload.getName() + " (" + SUB_FOLDER_ID + ")",
             "Creating new File " + file_1.getName() + " in " + dirToUpload.getName() + " (" + SUB_FOLDER_ID + ")",
             "Start uploading " + file_1.getAbsolutePath(),
             "Finished uploading " + file_1.getAbsolutePath(),
-            "Searching for " + file_2.getName() + " in " + dirToUpload.getName() + " (" + SUB_FOLDER_ID + ")",
             "Creating new File " + file_2.getName() + " in " + dirToUpload.getName() + " (" + SUB_FOLDER_ID + ")",
             "Start uploading " + file_2.getAbsolutePath(),
             "Finished uploading " + file_2.getAbsolutePath());
         mockBuildListenerHelper.assertNoErrors();
     }
-}
 
+    @Test
+    public void uploadFolder_withExcludedFileInSourceDir_leavesItOut() throws IOException {
+        // arrange
+        File dirToUpload = temporaryFolder.newFolder("reports");
+        File file_1 = new File(dirToUpload, "test_file_1.txt");
+        File excludedFile = new File(dirToUpload, "build.log");
+        Files.write(file_1.toPath(), "tests".getBytes(StandardCharsets.UTF_8));
+        Files.write(excludedFile.toPath(), "log".getBytes(StandardCharsets.UTF_8));
+        googleDriveManager.setExcludes(new UploadExcludes(temporaryFolder.getRoot().toPath(), Collections.singletonList("**/*.log")));
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for driveFolder
+        mockHttpTransport.mock(FilesCreateRequest.createFolder(FOLDER_ID, FOLDER_NAME));  // Create driveFolder
+        mockHttpTransport.mock(BatchCreateRequest.acceptedPermissions(PERMISSION_ID, USER_EMAIL)); // Send out permissions driveFolder
+        mockHttpTransport.mock(FilesCreateRequest.createFolder(SUB_FOLDER_ID, dirToUpload.getName())); // Create reports folder in new driveFolder
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, file_1.getName(), FILE_TYPE)); // create new Drive file with its content
+        // act
+        googleDriveManager.uploadFolder(dirToUpload, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Created new Folder " + FOLDER_NAME + " (" + FOLDER_ID + ") in root ()",
+            "Write permissions set to Folder " + FOLDER_NAME + " for " + USER_EMAIL,
+            "Created new Folder " + dirToUpload.getName() + " (" + SUB_FOLDER_ID + ") in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Creating new File " + file_1.getName() + " in " + dirToUpload.getName() + " (" + SUB_FOLDER_ID + ")",
+            "Start uploading " + file_1.getAbsolutePath(),
+            "Finished uploading " + file_1.getAbsolutePath());
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, googleDriveManager.statistics.getUploadedFiles());
+    }
+
+    @Test
+    public void submitFolder_withSameNamedFilesInSubFolders_uploadsEachIntoItsSubFolder() throws IOException {
+        // arrange
+        File file_1 = new File(temporaryFolder.newFolder("a"), "app.txt");
+        File file_2 = new File(temporaryFolder.newFolder("b"), "app.txt");
+        String folderBId = UUID.randomUUID().toString();
+        Files.write(file_1.toPath(), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(file_2.toPath(), "b".getBytes(StandardCharsets.UTF_8));
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for a in driveFolder
+        mockHttpTransport.mock(FilesCreateRequest.createFolder(SUB_FOLDER_ID, "a")); // Create a in driveFolder
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, file_1.getName(), FILE_TYPE)); // create new Drive file in a
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for b in driveFolder
+        mockHttpTransport.mock(FilesCreateRequest.createFolder(folderBId, "b")); // Create b in driveFolder
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID_2, file_2.getName(), FILE_TYPE)); // create new Drive file in b
+        // act
+        googleDriveManager.submitFolder(file_1, FOLDER_NAME, USER_EMAIL, Collections.singletonList("a"));
+        googleDriveManager.awaitUploads();
+        googleDriveManager.submitFolder(file_2, FOLDER_NAME, USER_EMAIL, Collections.singletonList("b"));
+        googleDriveManager.awaitUploads();
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Searching for a in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Created new Folder a (" + SUB_FOLDER_ID + ") in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Creating new File " + file_1.getName() + " in a (" + SUB_FOLDER_ID + ")",
+            "Start uploading " + file_1.getAbsolutePath(),
+            "Finished uploading " + file_1.getAbsolutePath(),
+            "userMail " + USER_EMAIL,
+            "Searching for b in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Created new Folder b (" + folderBId + ") in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Creating new File " + file_2.getName() + " in b (" + folderBId + ")",
+            "Start uploading " + file_2.getAbsolutePath(),
+            "Finished uploading " + file_2.getAbsolutePath());
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(2, googleDriveManager.statistics.getUploadedFiles());
+    }
+
+    @Test
+    public void uploadFolder_twiceToSameDestFolder_resolvesAndListsDestFolderOnce() {
+        // arrange
+        File file_1 = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        File file_2 = new File(this.getClass().getClassLoader().getResource("subdir/test_file_2.txt").getFile());
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder 
+        mockHttpTransport.mock(FilesListRequest.findFolder(SUB_FOLDER_ID, SUB_FOLDER_NAME)); // Search for sub folder in driveFolder 
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // List sub folder
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, file_1.getName(), FILE_TYPE)); // create new Drive file with its content
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID_2, file_2.getName(), FILE_TYPE)); // create new Drive file with its content
+        // act
+        googleDriveManager.uploadFolder(file_1, FOLDER_NAME + "/" + SUB_FOLDER_NAME, USER_EMAIL);
+        googleDriveManager.uploadFolder(file_2, FOLDER_NAME + "/" + SUB_FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Searching for " + SUB_FOLDER_NAME + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Found " + SUB_FOLDER_NAME + " (" + SUB_FOLDER_ID + ")",
+            "Listing " + SUB_FOLDER_NAME + " (" + SUB_FOLDER_ID + ")",
+            "Creating new File " + file_1.getName() + " in " + SUB_FOLDER_NAME + " (" + SUB_FOLDER_ID + ")",
+            "Start uploading " + file_1.getAbsolutePath(),
+            "Finished uploading " + file_1.getAbsolutePath(),
+            "userMail " + USER_EMAIL,
+            "Creating new File " + file_2.getName() + " in " + SUB_FOLDER_NAME + " (" + SUB_FOLDER_ID + ")",
+            "Start uploading " + file_2.getAbsolutePath(),
+            "Finished uploading " + file_2.getAbsolutePath());
+        mockBuildListenerHelper.assertNoErrors();
+    }
+
+    @Test
+    public void uploadFolder_withSkipUnchangedAndUnchangedDestFile() throws IOException {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        googleDriveManager.setSkipUnchanged(true);
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder 
+        mockHttpTransport.mock(FilesListWithChecksumRequest.findFile(FILE_ID, fileToUpload.getName(), FILE_TYPE,
+            Util.getDigestOf(fileToUpload), fileToUpload.length())); // List driveFolder 
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Skipping unchanged File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")");
+        mockBuildListenerHelper.assertNoErrors();
+    }
+
+    @Test
+    public void uploadFolder_withSkipUnchangedAndChangedDestFile() {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        googleDriveManager.setSkipUnchanged(true);
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder 
+        mockHttpTransport.mock(FilesListWithChecksumRequest.findFile(FILE_ID, fileToUpload.getName(), FILE_TYPE,
+            "d41d8cd98f00b204e9800998ecf8427e", fileToUpload.length())); // List driveFolder, file has other content
+        mockHttpTransport.mock(FilesUploadRequest.updateMultipartUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // Update existing Drive file with its content
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Updating existing File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Start uploading " + fileToUpload.getAbsolutePath(),
+            "Finished uploading " + fileToUpload.getAbsolutePath());
+        mockBuildListenerHelper.assertNoErrors();
+    }
+
+    @Test
+    public void uploadFolder_withSkipUnchangedAndJournaledFile() throws IOException {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        UploadJournal journal = UploadJournal.load(temporaryFolder.getRoot().toPath().resolve(UploadJournal.FILE_NAME));
+        journal.record(FOLDER_ID, fileToUpload, new UploadJournal.Entry(fileToUpload.length(), fileToUpload.lastModified(),
+            FILE_ID, Util.getDigestOf(fileToUpload)));
+        journal.save();
+        googleDriveManager.setSkipUnchanged(true);
+        googleDriveManager.setUploadJournal(UploadJournal.load(temporaryFolder.getRoot().toPath().resolve(UploadJournal.FILE_NAME)));
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder, no listing needed
+        mockHttpTransport.mock(BatchCreateRequest.foundFiles(FOLDER_ID, FILE_ID)); // Journaled file still in driveFolder
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Checking 1 journaled file(s) in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Skipping unchanged File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")");
+        mockBuildListenerHelper.assertNoErrors();
+        // One batched get asking just for the parents of the journaled file
+        String checkRequest = mockHttpTransport.recordedRequests.get(1).request.getContentAsString();
+        assertTrue(checkRequest, checkRequest.contains("/files/" + FILE_ID + "?fields=id") && checkRequest.contains("parents"));
+    }
+
+    @Test
+    public void uploadFolder_withSkipUnchangedAndJournaledFileDeletedInDrive() throws IOException {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        UploadJournal journal = UploadJournal.load(temporaryFolder.getRoot().toPath().resolve(UploadJournal.FILE_NAME));
+        journal.record(FOLDER_ID, fileToUpload, new UploadJournal.Entry(fileToUpload.length(), fileToUpload.lastModified(),
+            FILE_ID, Util.getDigestOf(fileToUpload)));
+        journal.save();
+        googleDriveManager.setSkipUnchanged(true);
+        googleDriveManager.setUploadJournal(UploadJournal.load(temporaryFolder.getRoot().toPath().resolve(UploadJournal.FILE_NAME)));
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(BatchCreateRequest.notFoundFiles(1)); // Journaled file was deleted in Drive
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // List driveFolder
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID_2, fileToUpload.getName(), FILE_TYPE)); // Upload it again
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Checking 1 journaled file(s) in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Creating new File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Start uploading " + fileToUpload.getAbsolutePath(),
+            "Finished uploading " + fileToUpload.getAbsolutePath());
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, googleDriveManager.statistics.getUploadedFiles());
+    }
+
+    @Test
+    public void uploadFolder_withStoredUploadSession() throws IOException {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        UploadSessionStore sessionStore = UploadSessionStore.load(temporaryFolder.getRoot().toPath().resolve(UploadSessionStore.FILE_NAME));
+        String sessionKey = UploadSessionStore.key(FOLDER_ID, fileToUpload, "POST");
+        sessionStore.put(sessionKey, new UploadSessionStore.Session(
+            "https://www.googleapis.com/upload/drive/v3/files?uploadType=resumable&upload_id=xa298sd_sdlkj2", 0, System.currentTimeMillis()));
+        googleDriveManager.setDirectUploadThreshold(0); // Use a resumable upload
+        googleDriveManager.setUploadSessionStore(sessionStore);
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // List driveFolder
+        mockHttpTransport.mock(FilesUploadRequest.resumeIncomplete(49)); // Session status, the first 50 bytes arrived
+        mockHttpTransport.mock(FilesUploadRequest.resumeUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // Upload the remaining bytes
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Creating new File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Start uploading " + fileToUpload.getAbsolutePath(),
+            "Resuming upload of " + fileToUpload.getAbsolutePath() + " at byte 50",
+            "Finished uploading " + fileToUpload.getAbsolutePath());
+        mockBuildListenerHelper.assertNoErrors();
+        assertFalse(sessionStore.lookup(sessionKey).isPresent());
+    }
+
+    @Test
+    public void uploadBundle_withFailedChunk_resendsWhatDriveMissed() throws IOException {
+        // arrange
+        File report = temporaryFolder.newFile("report.txt");
+        Files.write(report.toPath(), "all tests passed".getBytes(StandardCharsets.UTF_8));
+        googleDriveManager.setRetrySleeper(millis -> { });
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for an earlier bundle
+        mockHttpTransport.mock(FilesUploadRequest.initiateCreateUpload(FILE_ID, "reports.zip", "application/zip")); // Start the session
+        mockHttpTransport.mock(FilesUploadRequest.chunkServiceUnavailable()); // Send the bundle, fails
+        mockHttpTransport.mock(FilesUploadRequest.resumeIncomplete(9)); // Session status, the first 10 bytes arrived
+        mockHttpTransport.mock(FilesUploadRequest.resumeUpload(FILE_ID, "reports.zip", "application/zip")); // Send the remaining bytes
+        // act
+        googleDriveManager.uploadBundle(temporaryFolder.getRoot().toPath(), Collections.singletonList(report.toPath()),
+            FOLDER_NAME, USER_EMAIL, "reports.zip");
+        // assert
+        long bundleSize = mockHttpTransport.recordedRequests.get(3).request.getContentLength();
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Creating bundle reports.zip in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Retrying uploading bundle reports.zip after 503 Service Unavailable",
+            "Bundled 1 file(s) into reports.zip, " + bundleSize + " bytes");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals("bytes */" + bundleSize, mockHttpTransport.recordedRequests.get(4).request.getFirstHeaderValue("Content-Range"));
+        assertEquals("bytes 10-" + (bundleSize - 1) + "/" + bundleSize,
+            mockHttpTransport.recordedRequests.get(5).request.getFirstHeaderValue("Content-Range"));
+    }
+
+    @Test
+    public void uploadFolder_withNewSourceDirTree_createsFoldersPerLevel() throws IOException {
+        // arrange
+        File dirToUpload = temporaryFolder.newFolder("tree");
+        temporaryFolder.newFolder("tree", "a");
+        temporaryFolder.newFolder("tree", "c");
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for tree in driveFolder
+        mockHttpTransport.mock(FilesGenerateIdsRequest.generatedIds("tree-id", "a-id", "c-id")); // Reserve ids for the 3 missing folders
+        mockHttpTransport.mock(FilesCreateRequest.createFolder("tree-id", "tree")); // Create tree, alone on its level
+        mockHttpTransport.mock(BatchCreateRequest.createdFolders("a-id", "a", "c-id", "c")); // Create a and c in one batch
+        // act
+        googleDriveManager.uploadFolder(dirToUpload, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for "  + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Searching for tree in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Created new Folder tree (tree-id) in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Created new Folder a (a-id) in tree (tree-id)",
+            "Created new Folder c (c-id) in tree (tree-id)");
+        mockBuildListenerHelper.assertNoErrors();
+    }
+
+    @Test
+    public void cleanup_deletesMatchingFilesInBatch() {
+        // arrange
+        mockHttpTransport.mock(FilesListRequest.findFile(FILE_ID, "test_file_1.txt", FILE_TYPE)); // List the matching files
+        mockHttpTransport.mock(BatchCreateRequest.deletedFiles(1)); // Delete the matches in one batch
+        // act
+        int deleted = googleDriveManager.cleanup(FILE_TYPE, Arrays.asList("test_file_1.txt", "it's.txt"));
+        // assert
+        assertEquals(1, deleted);
+        mockBuildListenerHelper.assertLoggingEqual(
+            "Deleting test_file_1.txt (" + FILE_ID + ")",
+            "Deleted 1 of 1 matching file(s)");
+        mockBuildListenerHelper.assertNoErrors();
+        GenericUrl listingUrl = new GenericUrl(mockHttpTransport.recordedRequests.get(0).url);
+        assertEquals("(name='test_file_1.txt' or name='it\\'s.txt') and mimeType='" + FILE_TYPE + "' and trashed=false", listingUrl.getFirst("q"));
+        assertEquals("nextPageToken, files(id, name, mimeType)", listingUrl.getFirst("fields"));
+        assertEquals("1000", listingUrl.getFirst("pageSize"));
+    }
+
+    @Test
+    public void cleanup_withoutType_leavesFoldersAlone() {
+        // arrange
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // List the matching files
+        // act
+        int deleted = googleDriveManager.cleanup("", Arrays.asList("test_file_1.txt", " "));
+        // assert
+        assertEquals(0, deleted);
+        mockBuildListenerHelper.assertLoggingEqual("Deleted 0 of 0 matching file(s)");
+        mockBuildListenerHelper.assertNoErrors();
+        GenericUrl listingUrl = new GenericUrl(mockHttpTransport.recordedRequests.get(0).url);
+        assertEquals("(name='test_file_1.txt') and mimeType!='" + ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE + "' and trashed=false",
+            listingUrl.getFirst("q"));
+    }
+
+    @Test
+    public void cleanup_withFailedListing_deletesNothing() {
+        // arrange
+        mockHttpTransport.mock(FilesListRequest.notFound()); // List the matching files, fails
+        // act
+        int deleted = googleDriveManager.cleanup(FILE_TYPE, Collections.singletonList("test_file_1.txt"));
+        // assert
+        assertEquals(0, deleted);
+        mockBuildListenerHelper.assertErrors("Error cleaning up files : 404 Not Found");
+        assertEquals(1, mockHttpTransport.recordedRequests.size());
+    }
+
+    @Test
+    public void cleanup_withBlankNames_deletesNothing() {
+        // act
+        int deleted = googleDriveManager.cleanup("", Arrays.asList("", " "));
+        // assert
+        assertEquals(0, deleted);
+        mockBuildListenerHelper.assertLoggingEqual("No names to clean up, nothing is deleted");
+        mockBuildListenerHelper.assertNoErrors();
+        assertTrue(mockHttpTransport.recordedRequests.isEmpty());
+    }
+
+    @Test
+    public void uploadFolder_existenceChecksAskForOneMinimalGzippedResult() {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListRequest.findFolder(SUB_FOLDER_ID, SUB_FOLDER_NAME)); // Search for sub folder in driveFolder
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // List sub folder
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // create new Drive file with its content
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME + "/" + SUB_FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertNoErrors();
+        for (DriveMockHttpTransport.RecordedRequest recorded : mockHttpTransport.recordedRequests.subList(0, 2)) {
+            GenericUrl url = new GenericUrl(recorded.url);
+            assertEquals("1", url.getFirst("pageSize"));
+            assertEquals("nextPageToken, files(id, name, mimeType)", url.getFirst("fields"));
+        }
+        GenericUrl listingUrl = new GenericUrl(mockHttpTransport.recordedRequests.get(2).url);
+        assertEquals("1000", listingUrl.getFirst("pageSize"));
+        assertEquals("nextPageToken, files(id, name, mimeType, md5Checksum, size)", listingUrl.getFirst("fields"));
+        GenericUrl uploadUrl = new GenericUrl(mockHttpTransport.recordedRequests.get(3).url);
+        assertEquals("id, name, mimeType, md5Checksum, size", uploadUrl.getFirst("fields"));
+        for (DriveMockHttpTransport.RecordedRequest recorded : mockHttpTransport.recordedRequests) {
+            assertTrue(recorded.request.getFirstHeaderValue("Accept-Encoding").contains("gzip"));
+            assertTrue(recorded.request.getFirstHeaderValue("User-Agent").contains("gzip"));
+        }
+    }
+
+    @Test
+    public void uploadFolder_withFailedFolderCreate_findsFolderInsteadOfCreatingAgain() {
+        // arrange
+        googleDriveManager.setRetrySleeper(millis -> { });
+        mockHttpTransport.mock(FilesListRequest.emptyList());   // Search for driveFolder
+        mockHttpTransport.mock(FilesCreateRequest.serviceUnavailable()); // Create driveFolder, fails after creating it
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Look for the folder before retrying
+        mockHttpTransport.mock(BatchCreateRequest.acceptedPermissions(PERMISSION_ID, USER_EMAIL));  // Send out permissions driveFolder
+        // act
+        googleDriveManager.uploadFolder(null, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Retrying creating folder " + FOLDER_NAME + " after 503 Service Unavailable",
+            "Not retrying creating folder " + FOLDER_NAME + ", the previous attempt succeeded",
+            "Created new Folder " + FOLDER_NAME + " (" + FOLDER_ID + ") in root ()",
+            "Write permissions set to Folder " + FOLDER_NAME + " for " + USER_EMAIL);
+        mockBuildListenerHelper.assertNoErrors();
+        GenericUrl lookupUrl = new GenericUrl(mockHttpTransport.recordedRequests.get(2).url);
+        assertEquals("mimeType='" + ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE + "' and name='" + FOLDER_NAME + "' and 'root' in parents and trashed=false",
+            lookupUrl.getFirst("q"));
+    }
+
+    @Test
+    public void cleanup_withRateLimitedDelete_sendsItAgainInNewBatch() {
+        // arrange
+        googleDriveManager.setRetrySleeper(millis -> { });
+        mockHttpTransport.mock(FilesListRequest.findFile(FILE_ID, "test_file_1.txt", FILE_TYPE)); // List the matching files
+        mockHttpTransport.mock(BatchCreateRequest.rateLimitedCalls(1)); // Delete the matches, rejected by the rate limit
+        mockHttpTransport.mock(BatchCreateRequest.deletedFiles(1)); // Delete the rejected match again
+        // act
+        int deleted = googleDriveManager.cleanup(FILE_TYPE, Collections.singletonList("test_file_1.txt"));
+        // assert
+        assertEquals(1, deleted);
+        mockBuildListenerHelper.assertLoggingEqual(
+            "Deleting test_file_1.txt (" + FILE_ID + ")",
+            "Retrying 1 call(s) of deleting 1 files after a rate limit",
+            "Deleted 1 of 1 matching file(s)");
+        mockBuildListenerHelper.assertNoErrors();
+    }
+
+    @Test
+    public void uploadFolder_withRateLimitedSearch_retriesAfterBackoff() {
+        // arrange
+        googleDriveManager.setRetrySleeper(millis -> { });
+        mockHttpTransport.mock(FilesListRequest.rateLimited());   // Search for driveFolder, rejected
+        mockHttpTransport.mock(FilesListRequest.emptyList());   // Search for driveFolder, retried
+        mockHttpTransport.mock(FilesCreateRequest.createFolder(FOLDER_ID, FOLDER_NAME)); // Create driveFolder
+        mockHttpTransport.mock(BatchCreateRequest.acceptedPermissions(PERMISSION_ID, USER_EMAIL));  // Send out permissions driveFolder
+        // act
+        googleDriveManager.uploadFolder(null, FOLDER_NAME, USER_EMAIL);
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Retrying searching mimeType='" + ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE + "' and name='" + FOLDER_NAME + "' and trashed=false after 429 Too Many Requests",
+            "Created new Folder " + FOLDER_NAME + " (" + FOLDER_ID + ") in root ()",
+            "Write permissions set to Folder " + FOLDER_NAME + " for " + USER_EMAIL);
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, googleDriveManager.statistics.getRetries());
+    }
+
+    @Test
+    public void uploadFolder_dryRunToMissingFolder_plansFoldersAndFilesWithoutWriting() {
+        // arrange
+        File dirToUpload = new File(this.getClass().getClassLoader().getResource("subdir").getFile());
+        File file_1 = new File(dirToUpload, "test_file_1.txt");
+        File file_2 = new File(dirToUpload, "test_file_2.txt");
+        googleDriveManager.setDryRun(true);
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for driveFolder, nothing else is sent
+        // act
+        googleDriveManager.uploadFolder(dirToUpload, FOLDER_NAME, USER_EMAIL);
+        googleDriveManager.logSummary();
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Would create Folder " + FOLDER_NAME + " (dry-run-1) in root ()",
+            "Would set write permissions to Folder " + FOLDER_NAME + " for " + USER_EMAIL,
+            "Would create Folder " + dirToUpload.getName() + " (dry-run-2) in " + FOLDER_NAME + " (dry-run-1)",
+            "Would create File " + file_1.getName() + " in " + dirToUpload.getName() + " (dry-run-2), " + file_1.length() + " bytes",
+            "Would create File " + file_2.getName() + " in " + dirToUpload.getName() + " (dry-run-2), " + file_2.length() + " bytes",
+            "Dry run: 2 folder(s) to create, 2 file(s) to create, 0 to update, 0 unchanged to skip",
+            // A search, then two folders, a permission and two direct uploads
+            "Dry run: " + (file_1.length() + file_2.length()) + " bytes to transfer in about 6 Drive call(s) (1 read, 5 write), about 6 requests of quota");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, mockHttpTransport.requestCount);
+    }
+
+    @Test
+    public void uploadFolder_dryRunToExistingFile_plansUpdate() {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        googleDriveManager.setDryRun(true);
+        googleDriveManager.setDirectUploadThreshold(0); // Plan a resumable upload
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListRequest.findFile(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // List driveFolder
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        googleDriveManager.logSummary();
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Would update File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + "), " + fileToUpload.length() + " bytes",
+            "Dry run: 0 folder(s) to create, 0 file(s) to create, 1 to update, 0 unchanged to skip",
+            // Opening the session and a single chunk
+            "Dry run: " + fileToUpload.length() + " bytes to transfer in about 4 Drive call(s) (2 read, 2 write), about 4 requests of quota");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(0, googleDriveManager.statistics.getUploadedFiles());
+    }
+
+    @Test
+    public void uploadFolder_withSync_listsDestFolderOnceAndTrashesRemoteOnlyFiles() {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        googleDriveManager.setSync(true);
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListChildrenRequest.listChildren(FOLDER_ID,
+            FILE_ID, fileToUpload.getName(), FILE_TYPE, FILE_ID_2, "stale.txt", FILE_TYPE)); // List driveFolder and below
+        mockHttpTransport.mock(FilesUploadRequest.updateMultipartUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // Update existing Drive file
+        mockHttpTransport.mock(BatchCreateRequest.trashedFiles(FILE_ID_2)); // Trash the file that is not uploaded
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        int trashed = googleDriveManager.trashRemoteOnly();
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ") and everything below it",
+            "Listed 2 file(s) and folder(s) in 1 folder(s)",
+            "Updating existing File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Start uploading " + fileToUpload.getAbsolutePath(),
+            "Finished uploading " + fileToUpload.getAbsolutePath(),
+            "Trashing stale.txt (" + FILE_ID_2 + ")",
+            "Trashed 1 of 1 remote-only file(s) and folder(s)");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, trashed);
+    }
+
+    @Test
+    public void applyRetention_keepsLastFoldersAndTrashesTheOthersInOneBatch() {
+        // arrange
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListFoldersRequest.listFolders(
+            "build-1", "1", "2026-01-01T00:00:00.000Z",
+            "build-3", "3", "2026-01-03T00:00:00.000Z",
+            "build-2", "2", "2026-01-02T00:00:00.000Z")); // List the folders of driveFolder, in any order
+        mockHttpTransport.mock(BatchCreateRequest.trashedFiles("build-2", "build-1")); // Trash all but the last one
+        // act
+        int removed = googleDriveManager.applyRetention(FOLDER_NAME, new RetentionPolicy(1, 0, true));
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Retention keeps 1 of 3 folder(s) in " + FOLDER_NAME,
+            "Trashing 2 (build-2)",
+            "Trashing 1 (build-1)",
+            "Trashed 2 of 2 expired folder(s)");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(2, removed);
+        assertTrue(mockHttpTransport.recordedRequests.get(1).url.contains("createdTime"));
+    }
+
+    @Test
+    public void applyRetention_escapesQuotesInFolderNames() {
+        // arrange
+        mockHttpTransport.mock(FilesListRequest.emptyList()); // Search for driveFolder
+        // act
+        int removed = googleDriveManager.applyRetention("it's", new RetentionPolicy(1, 0, true));
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "Searching for it's",
+            "Folder it's not found, nothing to prune");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(0, removed);
+        GenericUrl searchUrl = new GenericUrl(mockHttpTransport.recordedRequests.get(0).url);
+        assertEquals("mimeType='" + ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE + "' and name='it\\'s' and trashed=false", searchUrl.getFirst("q"));
+    }
+
+    @Test
+    public void applyRetentionAfterUpload_keepsDestFolderEvenWhenExpired() {
+        // arrange
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListRequest.findFolder("build-1", "1")); // Search for the destination in driveFolder
+        mockHttpTransport.mock(FilesListFoldersRequest.listFolders(
+            "build-1", "1", "2026-01-01T00:00:00.000Z",
+            "build-3", "3", "2026-01-03T00:00:00.000Z",
+            "build-2", "2", "2026-01-02T00:00:00.000Z")); // List the folders of driveFolder, the destination is the oldest
+        mockHttpTransport.mock(BatchCreateRequest.trashedFiles("build-2")); // Trash the expired folder that is not the destination
+        // act
+        int removed = googleDriveManager.applyRetentionAfterUpload(FOLDER_NAME + "/1", new RetentionPolicy(1, 0, true));
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Searching for 1 in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Found 1 (build-1)",
+            "Retention keeps 2 of 3 folder(s) in " + FOLDER_NAME,
+            "Trashing 2 (build-2)",
+            "Trashed 1 of 1 expired folder(s)");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, removed);
+    }
+
+    @Test
+    public void applyRetentionAfterUpload_withFailedUpload_prunesNothing() {
+        // arrange
+        googleDriveManager.statistics.failed();
+        // act
+        int removed = googleDriveManager.applyRetentionAfterUpload(FOLDER_NAME + "/1", new RetentionPolicy(1, 0, true));
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual("1 file(s) failed to upload, " + FOLDER_NAME + " is not pruned");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(0, removed);
+        assertTrue(mockHttpTransport.recordedRequests.isEmpty());
+    }
+
+    @Test
+    public void uploadFolder_withSyncOfNestedDir_listsSubtreeOneLevelPerQuery() throws IOException {
+        // arrange
+        File dirToUpload = temporaryFolder.newFolder("tree");
+        File file_1 = new File(temporaryFolder.newFolder("tree", "a"), "app.txt");
+        File file_2 = new File(temporaryFolder.newFolder("tree", "b"), "app.txt");
+        Files.write(file_1.toPath(), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(file_2.toPath(), "b".getBytes(StandardCharsets.UTF_8));
+        String folderAId = UUID.randomUUID().toString();
+        String folderBId = UUID.randomUUID().toString();
+        googleDriveManager.setSync(true);
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListChildrenRequest.listChildren(FOLDER_ID,
+            SUB_FOLDER_ID, dirToUpload.getName(), ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE)); // List driveFolder
+        mockHttpTransport.mock(FilesListChildrenRequest.listChildren(SUB_FOLDER_ID,
+            folderAId, "a", ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE, folderBId, "b", ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE)); // List tree
+        mockHttpTransport.mock(FilesListChildrenRequest.listChildren(folderBId, FILE_ID_2, "stale.txt", FILE_TYPE)); // List a and b at once
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, file_1.getName(), FILE_TYPE)); // create new Drive file in a
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, file_2.getName(), FILE_TYPE)); // create new Drive file in b
+        mockHttpTransport.mock(BatchCreateRequest.trashedFiles(FILE_ID_2)); // Trash the file that is not uploaded
+        // act
+        googleDriveManager.uploadFolder(dirToUpload, FOLDER_NAME, USER_EMAIL);
+        int trashed = googleDriveManager.trashRemoteOnly();
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ") and everything below it",
+            "Listed 4 file(s) and folder(s) in 4 folder(s)",
+            "Creating new File " + file_1.getName() + " in a (" + folderAId + ")",
+            "Start uploading " + file_1.getAbsolutePath(),
+            "Finished uploading " + file_1.getAbsolutePath(),
+            "Creating new File " + file_2.getName() + " in b (" + folderBId + ")",
+            "Start uploading " + file_2.getAbsolutePath(),
+            "Finished uploading " + file_2.getAbsolutePath(),
+            "Trashing stale.txt (" + FILE_ID_2 + ")",
+            "Trashed 1 of 1 remote-only file(s) and folder(s)");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, trashed);
+        assertTrue(URLDecoder.decode(mockHttpTransport.recordedRequests.get(3).url, "UTF-8")
+            .contains("('" + folderAId + "' in parents or '" + folderBId + "' in parents) and trashed=false"));
+    }
+
+    @Test
+    public void uploadFolder_withSyncAndDuplicateNames_trashesOnlyTheDuplicateNotUpdated() {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        googleDriveManager.setSync(true);
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListChildrenRequest.listChildren(FOLDER_ID,
+            FILE_ID, fileToUpload.getName(), FILE_TYPE, FILE_ID_2, fileToUpload.getName(), FILE_TYPE)); // List driveFolder, a name twice
+        mockHttpTransport.mock(FilesUploadRequest.updateMultipartUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // Update the first one
+        mockHttpTransport.mock(BatchCreateRequest.trashedFiles(FILE_ID_2)); // Trash the other one
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        int trashed = googleDriveManager.trashRemoteOnly();
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ") and everything below it",
+            "Listed 2 file(s) and folder(s) in 1 folder(s)",
+            "Updating existing File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Start uploading " + fileToUpload.getAbsolutePath(),
+            "Finished uploading " + fileToUpload.getAbsolutePath(),
+            "Trashing " + fileToUpload.getName() + " (" + FILE_ID_2 + ")",
+            "Trashed 1 of 1 remote-only file(s) and folder(s)");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, trashed);
+    }
+
+    @Test
+    public void uploadFolder_withSyncAndFailedListing_trashesNothingInUnlistedFolder() throws IOException {
+        // arrange
+        File dirToUpload = temporaryFolder.newFolder(SUB_FOLDER_NAME);
+        File fileToUpload = new File(dirToUpload, "app.txt");
+        Files.write(fileToUpload.toPath(), "app".getBytes(StandardCharsets.UTF_8));
+        googleDriveManager.setSync(true);
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListChildrenRequest.listChildren(FOLDER_ID,
+            SUB_FOLDER_ID, SUB_FOLDER_NAME, ManagerBase.GOOGLE_DRIVE_FOLDER_MIMETYPE, FILE_ID_2, "stale.txt", FILE_TYPE)); // List driveFolder
+        mockHttpTransport.mock(FilesListRequest.notFound()); // List sub folder, fails
+        mockHttpTransport.mock(FilesListChildrenRequest.listChildren(SUB_FOLDER_ID, FILE_ID, "old.txt", FILE_TYPE)); // List sub folder to upload into it
+        mockHttpTransport.mock(FilesUploadRequest.createMultipartUpload(FILE_ID, fileToUpload.getName(), FILE_TYPE)); // create new Drive file
+        mockHttpTransport.mock(BatchCreateRequest.trashedFiles(FILE_ID_2)); // Trash only the file of the listed driveFolder
+        // act
+        googleDriveManager.uploadFolder(dirToUpload, FOLDER_NAME, USER_EMAIL);
+        int trashed = googleDriveManager.trashRemoteOnly();
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ") and everything below it",
+            "Listed 2 file(s) and folder(s) in 1 folder(s)",
+            "Listing " + SUB_FOLDER_NAME + " (" + SUB_FOLDER_ID + ")",
+            "Creating new File " + fileToUpload.getName() + " in " + SUB_FOLDER_NAME + " (" + SUB_FOLDER_ID + ")",
+            "Start uploading " + fileToUpload.getAbsolutePath(),
+            "Finished uploading " + fileToUpload.getAbsolutePath(),
+            "Trashing stale.txt (" + FILE_ID_2 + ")",
+            "Trashed 1 of 1 remote-only file(s) and folder(s)");
+        mockBuildListenerHelper.assertErrors("Error listing " + FOLDER_NAME + " (" + FOLDER_ID + ") : 404 Not Found");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, trashed);
+    }
+
+    @Test
+    public void uploadFolder_dryRunWithSync_logsWouldTrashWithoutWriting() {
+        // arrange
+        File fileToUpload = new File(this.getClass().getClassLoader().getResource("subdir/test_file_1.txt").getFile());
+        googleDriveManager.setSync(true);
+        googleDriveManager.setDryRun(true);
+        mockHttpTransport.mock(FilesListRequest.findFolder(FOLDER_ID, FOLDER_NAME)); // Search for driveFolder
+        mockHttpTransport.mock(FilesListChildrenRequest.listChildren(FOLDER_ID,
+            FILE_ID, fileToUpload.getName(), FILE_TYPE, FILE_ID_2, "stale.txt", FILE_TYPE)); // List driveFolder and below
+        // act
+        googleDriveManager.uploadFolder(fileToUpload, FOLDER_NAME, USER_EMAIL);
+        int trashed = googleDriveManager.trashRemoteOnly();
+        // assert
+        mockBuildListenerHelper.assertLoggingEqual(
+            "userMail " + USER_EMAIL,
+            "Searching for " + FOLDER_NAME,
+            "Found " + FOLDER_NAME + " (" + FOLDER_ID + ")",
+            "Listing " + FOLDER_NAME + " (" + FOLDER_ID + ") and everything below it",
+            "Listed 2 file(s) and folder(s) in 1 folder(s)",
+            "Would update File " + fileToUpload.getName() + " in " + FOLDER_NAME + " (" + FOLDER_ID + "), " + fileToUpload.length() + " bytes",
+            "Would trash stale.txt (" + FILE_ID_2 + ")");
+        mockBuildListenerHelper.assertNoErrors();
+        assertEquals(1, trashed);
+        assertEquals(2, mockHttpTransport.recordedRequests.size());
+        for (DriveMockHttpTransport.RecordedRequest request : mockHttpTransport.recordedRequests) {
+            assertEquals("GET", request.method);
+        }
+    }
+}
@@ -14,9 +14,12 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 public class GoogleDriveUploaderTest {
 
@@ -56,6 +59,30 @@ public class GoogleDriveUploaderTest {
     @Test
     public void getUploadFiles_witMultiplePatterns() throws IOException, InterruptedException {
         Set<Path> uploadFiles = GoogleDriveUploaderExecution.getUploadFiles(workspace, "subdir,*/*1.txt,**/*.txt", env);
-        assertEquals(3, uploadFiles.size());
+        // The files are in the matched directory, uploading it sends them
+        assertEquals(Collections.singleton(workspace.resolve("subdir")), uploadFiles);
+    }
+
+    @Test
+    public void getSubFolders_keepsDirectoriesOfMatchedFile() {
+        assertEquals(Collections.singletonList("subdir"),
+            GoogleDriveUploaderExecution.getSubFolders(workspace, workspace.resolve("subdir/test_file_1.txt")));
+    }
+
+    @Test
+    public void getSubFolders_keepsDirectoriesOfMatchedDirectory() {
+        assertEquals(Collections.emptyList(), GoogleDriveUploaderExecution.getSubFolders(workspace, workspace.resolve("subdir")));
+        assertEquals(Collections.singletonList("subdir"),
+            GoogleDriveUploaderExecution.getSubFolders(workspace, workspace.resolve("subdir/nested")));
+    }
+
+    @Test
+    public void getStateFileName_differsPerDestination() {
+        String journal = GoogleDriveUploaderExecution.getStateFileName(UploadJournal.FILE_NAME, "credentials", "", "", "builds/1");
+        assertTrue(journal.startsWith("google-drive-upload-journal-"));
+        assertTrue(journal.endsWith(".properties"));
+        assertEquals(journal, GoogleDriveUploaderExecution.getStateFileName(UploadJournal.FILE_NAME, "credentials", "", "", "builds/1"));
+        assertNotEquals(journal, GoogleDriveUploaderExecution.getStateFileName(UploadJournal.FILE_NAME, "credentials", "", "", "builds/2"));
+        assertNotEquals(journal, GoogleDriveUploaderExecution.getStateFileName(UploadJournal.FILE_NAME, "credentials", "Drive", "", "builds/1"));
     }
 }
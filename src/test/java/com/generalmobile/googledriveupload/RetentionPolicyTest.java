@@ -0,0 +1,61 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class RetentionPolicyTest {
+    private static final long NOW = TimeUnit.DAYS.toMillis(1000);
+
+    @Test
+    public void selectExpired_keepsLastCreated() {
+        File build1 = folder("1", 30);
+        File build2 = folder("2", 20);
+        File build3 = folder("3", 10);
+
+        List<File> expired = new RetentionPolicy(2, 0, true).selectExpired(Arrays.asList(build3, build1, build2), NOW);
+
+        assertEquals(Collections.singletonList(build1), expired);
+    }
+
+    @Test
+    public void selectExpired_keepsNewerThanAge() {
+        File build1 = folder("1", 30);
+        File build2 = folder("2", 20);
+        File build3 = folder("3", 10);
+
+        List<File> expired = new RetentionPolicy(0, 15, true).selectExpired(Arrays.asList(build1, build2, build3), NOW);
+
+        assertEquals(Arrays.asList(build2, build1), expired);
+    }
+
+    @Test
+    public void selectExpired_keepsWhatEitherKeeps() {
+        File build1 = folder("1", 30);
+        File build2 = folder("2", 20);
+        File build3 = folder("3", 10);
+        File unknown = new File().setId("unknown").setName("unknown");
+
+        List<File> expired = new RetentionPolicy(1, 25, true).selectExpired(Arrays.asList(build1, build2, build3, unknown), NOW);
+
+        // The folder without a creation time counts as the newest, build 2 is young enough
+        assertEquals(Collections.singletonList(build1), expired);
+    }
+
+    @Test
+    public void isEnabled_needsCountOrAge() {
+        assertFalse(new RetentionPolicy(0, 0, true).isEnabled());
+    }
+
+    private static File folder(final String name, final int ageDays) {
+        return new File().setId("id-" + name).setName(name).setCreatedTime(new DateTime(NOW - TimeUnit.DAYS.toMillis(ageDays)));
+    }
+}
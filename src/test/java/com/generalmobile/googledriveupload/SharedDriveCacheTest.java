@@ -0,0 +1,72 @@
+package com.generalmobile.googledriveupload;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SharedDriveCacheTest {
+
+    @After
+    public void clearCache() {
+        SharedDriveCache.clear();
+    }
+
+    @Test
+    public void get_returnsIdPerCredentialsAndName() {
+        SharedDriveCache.put("credentials-1", "My-Shared-Drive", "drive-1");
+        assertEquals(Optional.of("drive-1"), SharedDriveCache.get("credentials-1", "My-Shared-Drive"));
+        assertFalse(SharedDriveCache.get("credentials-2", "My-Shared-Drive").isPresent());
+        assertFalse(SharedDriveCache.get("credentials-1", "Other-Shared-Drive").isPresent());
+    }
+
+    @Test
+    public void invalidate_removesEntry() {
+        SharedDriveCache.put("credentials-1", "My-Shared-Drive", "drive-1");
+        SharedDriveCache.invalidate("credentials-1", "My-Shared-Drive");
+        assertFalse(SharedDriveCache.get("credentials-1", "My-Shared-Drive").isPresent());
+    }
+
+    @Test
+    public void put_ignoresUnresolvedId() {
+        SharedDriveCache.put("credentials-1", "My-Shared-Drive", null);
+        assertFalse(SharedDriveCache.get("credentials-1", "My-Shared-Drive").isPresent());
+    }
+
+    @Test
+    public void resolve_withLookup_cachesResolvedId() {
+        SharedDriveCache.Resolution sharedDrive = SharedDriveCache.resolve("credentials-1", "", "My-Shared-Drive");
+        assertEquals("", sharedDrive.getSharedDriveId());
+        sharedDrive.resolved("drive-1");
+        assertEquals(Optional.of("drive-1"), SharedDriveCache.get("credentials-1", "My-Shared-Drive"));
+    }
+
+    @Test
+    public void resolve_withCachedId_doesNotCacheAgain() {
+        SharedDriveCache.put("credentials-1", "My-Shared-Drive", "drive-1");
+        SharedDriveCache.Resolution sharedDrive = SharedDriveCache.resolve("credentials-1", "", "My-Shared-Drive");
+        assertEquals("drive-1", sharedDrive.getSharedDriveId());
+        SharedDriveCache.invalidate("credentials-1", "My-Shared-Drive");
+        sharedDrive.resolved("drive-1");
+        assertFalse(SharedDriveCache.get("credentials-1", "My-Shared-Drive").isPresent());
+    }
+
+    @Test
+    public void resolve_withGivenId_ignoresCache() {
+        SharedDriveCache.put("credentials-1", "My-Shared-Drive", "drive-1");
+        SharedDriveCache.Resolution sharedDrive = SharedDriveCache.resolve("credentials-1", "drive-2", "My-Shared-Drive");
+        assertEquals("drive-2", sharedDrive.getSharedDriveId());
+        sharedDrive.failed();
+        assertEquals(Optional.of("drive-1"), SharedDriveCache.get("credentials-1", "My-Shared-Drive"));
+    }
+
+    @Test
+    public void failed_withCachedId_invalidatesEntry() {
+        SharedDriveCache.put("credentials-1", "My-Shared-Drive", "drive-1");
+        SharedDriveCache.resolve("credentials-1", "", "My-Shared-Drive").failed();
+        assertFalse(SharedDriveCache.get("credentials-1", "My-Shared-Drive").isPresent());
+    }
+}
@@ -0,0 +1,62 @@
+package com.generalmobile.googledriveupload;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Reads back the HttpParams the transport is configured with
+@SuppressWarnings("deprecation")
+public class TransportSettingsTest {
+
+    @Test
+    public void newTransport_netHttpUsesJdkConnection() throws GeneralSecurityException, IOException {
+        HttpTransport transport = TransportSettings.defaults().newTransport();
+        assertTrue(transport instanceof NetHttpTransport);
+    }
+
+    @Test
+    public void newTransport_apacheAppliesPoolAndBufferSize() throws GeneralSecurityException, IOException {
+        TransportSettings settings = new TransportSettings(TransportSettings.TransportType.APACHE, 50, 64, 5, 30, 0);
+        HttpTransport transport = settings.newTransport();
+        assertTrue(transport instanceof ApacheHttpTransport);
+        HttpParams params = ((ApacheHttpTransport) transport).getHttpClient().getParams();
+        assertEquals(50, ((ConnPerRouteBean) ConnManagerParams.getMaxConnectionsPerRoute(params)).getDefaultMax());
+        assertTrue(ConnManagerParams.getMaxTotalConnections(params) >= 50);
+        assertEquals(64 * 1024, HttpConnectionParams.getSocketBufferSize(params));
+    }
+
+    @Test
+    public void newTransport_apacheKeepsDefaultBufferSize() throws GeneralSecurityException, IOException {
+        TransportSettings settings = new TransportSettings(TransportSettings.TransportType.APACHE, 20, 0, 5, 30, 0);
+        HttpParams params = ((ApacheHttpTransport) settings.newTransport()).getHttpClient().getParams();
+        assertEquals(8 * 1024, HttpConnectionParams.getSocketBufferSize(params));
+    }
+
+    @Test
+    public void configure_appliesTimeouts() throws IOException {
+        TransportSettings settings = new TransportSettings(TransportSettings.TransportType.NET_HTTP, 20, 0, 5, 30, 0);
+        HttpRequest request = new NetHttpTransport().createRequestFactory().buildGetRequest(new GenericUrl("https://www.googleapis.com/drive/v3/files"));
+        settings.configure(request);
+        assertEquals(5000, request.getConnectTimeout());
+        assertEquals(30000, request.getReadTimeout());
+    }
+
+    @Test
+    public void newRateLimiter_isNullWithoutRate() {
+        assertNull(new TransportSettings(TransportSettings.TransportType.NET_HTTP, 20, 0, 5, 30, 0).newRateLimiter());
+    }
+}
@@ -0,0 +1,100 @@
+package com.generalmobile.googledriveupload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadFileWalkerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void walk_matchesAllPatternsInOneWalk() throws IOException {
+        Path root = temporaryFolder.getRoot().toPath();
+        Path report = createFile(root, "target/reports/report.pdf");
+        Path nestedReport = createFile(root, "target/reports/nested/other.pdf");
+        Path doc = createFile(root, "docs/manual.pdf");
+        createFile(root, "docs/nested/ignored.pdf");
+        createFile(root, "src/main.c");
+
+        UploadFileWalker walker = new UploadFileWalker(root, Arrays.asList("target/**/*.pdf", "docs/*.pdf"), Collections.emptyList(), 4);
+
+        assertEquals(new HashSet<>(Arrays.asList(report, nestedReport, doc)), walker.walk());
+    }
+
+    @Test
+    public void mayMatchBelow_prunesDirectoriesOutsideTheLiteralPrefix() {
+        Path root = temporaryFolder.getRoot().toPath();
+        UploadFileWalker walker = new UploadFileWalker(root, Arrays.asList("target/**/*.pdf", "docs/*.pdf"), Collections.emptyList(), 1);
+
+        assertTrue(walker.mayMatchBelow(root.resolve("target")));
+        assertTrue(walker.mayMatchBelow(root.resolve("target/reports/nested")));
+        assertTrue(walker.mayMatchBelow(root.resolve("docs")));
+        assertFalse(walker.mayMatchBelow(root.resolve("docs/nested")));
+        assertFalse(walker.mayMatchBelow(root.resolve("src")));
+    }
+
+    @Test
+    public void mayMatchBelow_entersEverythingForLeadingDoubleStar() {
+        Path root = temporaryFolder.getRoot().toPath();
+        UploadFileWalker walker = new UploadFileWalker(root, Collections.singletonList("**/*.txt"), Collections.emptyList(), 1);
+
+        assertTrue(walker.mayMatchBelow(root.resolve("src/main/deep")));
+    }
+
+    @Test
+    public void walk_skipsExcludedDirectories() throws IOException {
+        Path root = temporaryFolder.getRoot().toPath();
+        Path script = createFile(root, "app/main.js");
+        createFile(root, "app/node_modules/lib/index.js");
+        createFile(root, "node_modules/lib/index.js");
+
+        UploadFileWalker walker = new UploadFileWalker(root, Collections.singletonList("**/*.js"),
+            Arrays.asList("node_modules", "**/node_modules"), 4);
+
+        assertEquals(Collections.singleton(script), walker.walk());
+    }
+
+    @Test
+    public void walk_entersLinkedDirectoriesOnce() throws IOException {
+        Path root = temporaryFolder.getRoot().toPath();
+        Path report = createFile(root, "reports/report.pdf");
+        // A link back to the workspace would otherwise be walked forever
+        Files.createSymbolicLink(root.resolve("reports/loop"), root);
+
+        UploadFileWalker walker = new UploadFileWalker(root, Collections.singletonList("**/*.pdf"), Collections.emptyList(), 4);
+
+        assertEquals(Collections.singleton(report), walker.walk());
+    }
+
+    @Test
+    public void walk_collapsesMatchesInsideMatchedDirectories() throws IOException {
+        Path root = temporaryFolder.getRoot().toPath();
+        createFile(root, "dist/app.apk");
+        createFile(root, "dist/flavors/free.apk");
+        Path other = createFile(root, "other/extra.apk");
+
+        UploadFileWalker walker = new UploadFileWalker(root, Arrays.asList("dist", "dist/**/*.apk", "**/*.apk"), Collections.emptyList(), 4);
+
+        assertEquals(new HashSet<>(Arrays.asList(root.resolve("dist"), other)), walker.walk());
+    }
+
+    private static Path createFile(final Path root, final String relativePath) throws IOException {
+        Path file = root.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.createFile(file);
+        return file;
+    }
+}
@@ -0,0 +1,56 @@
+package com.generalmobile.googledriveupload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UploadPipelineTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void run_handsEveryMatchToTheStage() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        Set<Path> expected = new HashSet<>();
+        // More matches than the queue holds, so the walk has to wait for the stage
+        for (int i = 0; i < UploadPipeline.QUEUE_CAPACITY * 2; i++) {
+            expected.add(Files.createFile(root.resolve("report-" + i + ".txt")));
+        }
+        UploadFileWalker walker = new UploadFileWalker(root, Collections.singletonList("*.txt"), Collections.emptyList(), 2);
+
+        Set<Path> handled = new HashSet<>();
+        new UploadPipeline(walker).run(handled::add);
+
+        assertEquals(expected, handled);
+    }
+
+    @Test
+    public void run_stopsTheWalkWhenTheStageFails() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        for (int i = 0; i < UploadPipeline.QUEUE_CAPACITY * 2; i++) {
+            Files.createFile(root.resolve("report-" + i + ".txt"));
+        }
+        UploadFileWalker walker = new UploadFileWalker(root, Collections.singletonList("*.txt"), Collections.emptyList(), 2);
+
+        try {
+            new UploadPipeline(walker).run(path -> {
+                throw new IOException("Drive unavailable");
+            });
+            fail("The failure of the stage should end the pipeline");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Drive unavailable"));
+        }
+    }
+}
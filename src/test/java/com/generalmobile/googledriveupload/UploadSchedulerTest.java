@@ -0,0 +1,84 @@
+package com.generalmobile.googledriveupload;
+
+import hudson.model.BuildListener;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadSchedulerTest {
+
+    private final UploadScheduler scheduler = new UploadScheduler();
+    private final BuildListener listener = new MockBuildListenerHelper().createMockBuildListener();
+
+    @Test
+    public void acquire_givesLoneSlotWholeRequestRate() throws InterruptedException {
+        try (UploadScheduler.Slot slot = scheduler.acquire("credentials-1", "job #1", 4, 10, listener)) {
+            assertEquals(10, slot.getRequestsPerSecond());
+        }
+        try (UploadScheduler.Slot slot = scheduler.acquire("credentials-1", "job #2", 4, 0, listener)) {
+            assertEquals(0, slot.getRequestsPerSecond());
+        }
+    }
+
+    @Test
+    public void acquire_rebalancesRequestRateBetweenRunningSlots() throws InterruptedException {
+        UploadScheduler.Slot first = scheduler.acquire("credentials-1", "job #1", 0, 10, listener);
+        UploadScheduler.Slot second = scheduler.acquire("credentials-1", "job #2", 0, 10, listener);
+        assertEquals(5, first.getRequestsPerSecond());
+        assertEquals(5, second.getRequestsPerSecond());
+        UploadScheduler.Slot third = scheduler.acquire("credentials-1", "job #3", 0, 10, listener);
+        // The remainder goes to the longest running slot, the shares add up to the rate
+        assertEquals(4, first.getRequestsPerSecond());
+        assertEquals(3, second.getRequestsPerSecond());
+        assertEquals(3, third.getRequestsPerSecond());
+        // Other credentials have their own rate
+        try (UploadScheduler.Slot other = scheduler.acquire("credentials-2", "job #4", 0, 10, listener)) {
+            assertEquals(10, other.getRequestsPerSecond());
+        }
+        first.close();
+        third.close();
+        assertEquals(10, second.getRequestsPerSecond());
+        second.close();
+    }
+
+    @Test
+    public void acquire_waitsInLineWhenSlotsAreTaken() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            UploadScheduler.Slot first = scheduler.acquire("credentials-1", "job #1", 1, 10, listener);
+            Future<UploadScheduler.Slot> second = executor.submit(() -> scheduler.acquire("credentials-1", "job #2", 1, 10, listener));
+            while (scheduler.getStatus().get(0).getWaiting().isEmpty()) {
+                Thread.sleep(10);
+            }
+            assertFalse(second.isDone());
+            // Other credentials have their own slots
+            scheduler.acquire("credentials-2", "job #3", 1, 10, listener).close();
+
+            List<UploadQueueStatus> status = scheduler.getStatus();
+            // The other credentials have no uploads left
+            assertEquals(1, status.size());
+            assertEquals("credentials-1", status.get(0).getCredentialsId());
+            assertEquals(1, status.get(0).getRunning().size());
+            assertTrue(status.get(0).getRunning().get(0).startsWith("job #1"));
+            assertTrue(status.get(0).getWaiting().get(0).startsWith("job #2"));
+
+            first.close();
+            UploadScheduler.Slot secondSlot = second.get(10, TimeUnit.SECONDS);
+            assertEquals(2, scheduler.getStatus().get(0).getGrantedSlots());
+            assertTrue(scheduler.getStatus().get(0).getWaiting().isEmpty());
+            secondSlot.close();
+            // Credentials without uploads are not kept
+            assertTrue(scheduler.getStatus().isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}